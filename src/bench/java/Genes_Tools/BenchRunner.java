@@ -0,0 +1,46 @@
+package Genes_Tools;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import loci.formats.FormatException;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+
+/**
+ * Run benchmarks and write JMH JSON results in target/jmh-<label>.json
+ * label is given by -Dbench.label (commit id to compare commits), default "current"
+ * smoke argument : one fork, short iterations and a small stack for a quick local check,
+ * dots numbers of tiled, streamed and CLIJ2 detection are first checked (EquivalenceCheck)
+ * @author phm
+ */
+
+public class BenchRunner {
+
+    public static void main(String[] args) throws RunnerException, IOException, FormatException {
+        boolean smoke = Arrays.asList(args).contains("smoke");
+        String label = System.getProperty("bench.label", "current");
+        new File("target").mkdirs();
+        ChainedOptionsBuilder opt = new OptionsBuilder()
+                .include("Genes_Tools\\.(StageBenchmarks|PipelineBenchmark)\\.")
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-"+label+(smoke ? "-smoke" : "")+".json");
+        if (smoke) {
+            EquivalenceCheck.run("512x512x32", 100);
+            opt.forks(1)
+                    .warmupIterations(1).warmupTime(TimeValue.seconds(1))
+                    .measurementIterations(2).measurementTime(TimeValue.seconds(1))
+                    .param("size", "128x128x16")
+                    .param("density", "200")
+                    .param("noise", "20")
+                    .param("objectsImage", "true");
+        }
+        new Runner(opt.build()).run();
+    }
+}
@@ -0,0 +1,128 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.io.IOException;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Dots numbers of the detection paths on a seeded synthetic roi, checked by the smoke profile
+ * Tiled and Z-slab streamed detection (CPU) must find the same dots as whole stack detection,
+ * CLIJ2 (when an OpenCL device is found) must agree with the CPU backend within COUNT_TOLERANCE
+ * @author phm
+ */
+
+public class EquivalenceCheck {
+
+    // relative difference of dots numbers allowed between CPU and CLIJ2 backends (see CPUBackend)
+    public static final double COUNT_TOLERANCE = 0.05;
+
+
+    /**
+     * In memory stack read as one channel image
+     */
+    private static class StackReader extends ImageProcessorReader {
+        private final ImagePlus img;
+
+        StackReader(ImagePlus img) {
+            this.img = img;
+        }
+
+        @Override
+        public int getSizeZ() {
+            return(img.getNSlices());
+        }
+
+        @Override
+        public int getPixelType() {
+            return(FormatTools.UINT16);
+        }
+
+        @Override
+        public int getRGBChannelCount() {
+            return(1);
+        }
+
+        @Override
+        public int getIndex(int z, int c, int t) {
+            return(z);
+        }
+
+        @Override
+        public ImageProcessor[] openProcessors(int no, int x, int y, int w, int h) {
+            ImageProcessor ip = img.getStack().getProcessor(no + 1);
+            ip.setRoi(x, y, w, h);
+            return(new ImageProcessor[]{ip.crop()});
+        }
+    }
+
+
+    private static RNA_Scope_Nerve_Processing genes(SyntheticStack synth, DetectionBackend backend) {
+        RNA_Scope_Nerve_Processing genes = new RNA_Scope_Nerve_Processing();
+        genes.backend = backend;
+        genes.cal = synth.cal;
+        return(genes);
+    }
+
+
+    private static void check(String path, int expected, int found, double tolerance) {
+        boolean ok = Math.abs(found - expected) <= tolerance * expected;
+        System.out.println((ok ? "OK " : "FAILED ")+path+" : "+found+" dots, whole stack CPU : "+expected);
+        if (!ok)
+            throw new IllegalStateException(path+" dots number "+found+" differs from whole stack CPU "+expected);
+    }
+
+
+    /**
+     * Compare detection paths on synthetic roi
+     * @param size stack size WxHxD
+     * @param density dots per million voxels
+     * @throws java.io.IOException
+     * @throws loci.formats.FormatException
+     */
+    public static void run(String size, double density) throws IOException, FormatException {
+        SyntheticStack synth = new SyntheticStack().size(size);
+        synth.density = density;
+        ImagePlus full = synth.image("gene1");
+        Roi roi = synth.polygonRoi(9);
+        Rectangle rect = roi.getBounds();
+
+        RNA_Scope_Nerve_Processing cpu = genes(synth, new CPUBackend());
+        RoiMask mask = cpu.roiMask(roi, rect.width, rect.height);
+        int whole = cpu.findGenesPop(SyntheticStack.crop(full, roi), mask, false).getNbObjects();
+
+        // tiles of about a quarter of the roi
+        long tileBytes = 2L * 4 * full.getNSlices() * (rect.width / 2) * (rect.height / 2);
+        RNA_Scope_Nerve_Processing tiled = genes(synth, new CPUBackend() {
+            @Override
+            public long availableMemory() {
+                return(tileBytes);
+            }
+        });
+        check("tiled", whole, new TiledDetector(tiled, new StackReader(full), roi, mask).findDots(0).getNbObjects(), 0);
+
+        RNA_Scope_Nerve_Processing streamed = genes(synth, new CPUBackend());
+        streamed.slabPlanes = Math.max(1, full.getNSlices() / 4);
+        check("Z-slab streamed", whole, new SlabDetector(streamed, new StackReader(full), roi, mask).findDots(0, false).getNbObjects(), 0);
+
+        CLIJ2Backend gpu;
+        try {
+            gpu = new CLIJ2Backend(CLIJ2.getInstance());
+        } catch (Exception | LinkageError ex) {
+            System.out.println("No OpenCL device, CLIJ2 check skipped");
+            return;
+        }
+        try {
+            check("CLIJ2", whole, genes(synth, gpu).findGenesPop(SyntheticStack.crop(full, roi), mask, false).getNbObjects(), COUNT_TOLERANCE);
+        } finally {
+            gpu.close();
+        }
+    }
+}
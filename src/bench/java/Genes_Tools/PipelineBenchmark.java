@@ -0,0 +1,93 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Whole roi on the CPU path : crop, roi mask and volume, both genes dots, results row and objects image
+ * Images are generated once per trial, only the crop stands for Bio-Formats decoding
+ * @author phm
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-Djava.awt.headless=true", "-Drnascope.backend=cpu"})
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class PipelineBenchmark {
+
+    @Param({"512x512x32"})
+    public String size;
+    @Param({"50", "400"})
+    public double density;
+    @Param({"20"})
+    public double noise;
+    @Param({"32"})
+    public int roiVertices;
+    @Param({"true", "false"})
+    public boolean objectsImage;
+
+    private RNA_Scope_Nerve_Processing genes;
+    private ImagePlus gene1, gene2;
+    private Roi roi;
+    private File objectsFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        SyntheticStack synth = new SyntheticStack().size(size);
+        synth.density = density;
+        synth.noise = noise;
+        genes = new RNA_Scope_Nerve_Processing();
+        genes.backend = new CPUBackend();
+        genes.cal = synth.cal;
+        genes.pixVol = (float) (synth.cal.pixelWidth*synth.cal.pixelHeight*synth.cal.pixelDepth);
+        roi = synth.polygonRoi(roiVertices);
+        gene1 = synth.image("gene1");
+        synth.seed = SyntheticStack.SEED + 100;
+        gene2 = synth.image("gene2");
+        objectsFile = File.createTempFile("bench_", "_Objects.tif");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        objectsFile.delete();
+    }
+
+
+    @Benchmark
+    public String roi() throws IOException {
+        ImagePlus img1 = SyntheticStack.crop(gene1, roi);
+        ImagePlus img2 = SyntheticStack.crop(gene2, roi);
+        RoiMask mask = genes.roiMask(roi, img1.getWidth(), img1.getHeight());
+        double roiVol = genes.roiVolume(mask, img1.getNSlices());
+        DotsPopulation[] pops = genes.findGenesPops(new ImagePlus[]{img1, img2}, mask, objectsImage, false);
+        DotsPopulation pop1 = pops[0], pop2 = pops[1];
+        double gene1Vol = pop1.getVolume(), gene2Vol = pop2.getVolume();
+        double estimatedGene1Nb = Math.round(gene1Vol/genes.singleDotVol);
+        double estimatedGene2Nb = Math.round(gene2Vol/genes.singleDotVol);
+        if (objectsImage)
+            genes.saveGenesImage(pops, objectsFile.getPath());
+        return(roi.getName()+"\t"+roiVol+"\t"+gene1Vol+"\t"+estimatedGene1Nb+"\t"+gene2Vol+"\t"+estimatedGene2Nb);
+    }
+}
@@ -0,0 +1,148 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Each stage of one roi on the CPU path, inputs of the stage are built once per trial
+ * @author phm
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-Djava.awt.headless=true", "-Drnascope.backend=cpu"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StageBenchmarks {
+
+    @Param({"512x512x32"})
+    public String size;
+    // dots per million voxels
+    @Param({"50", "400"})
+    public double density;
+    @Param({"10", "40"})
+    public double noise;
+    @Param({"32"})
+    public int roiVertices;
+
+    private RNA_Scope_Nerve_Processing genes;
+    private CPUBackend cpu;
+    private ImagePlus img;
+    private Roi roi;
+    private RoiMask mask;
+    private float[][] dog;
+    private ImagePlus imgBin;
+    private DotsPopulation pop;
+    private File objectsFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        SyntheticStack synth = new SyntheticStack().size(size);
+        synth.density = density;
+        synth.noise = noise;
+        genes = new RNA_Scope_Nerve_Processing();
+        cpu = new CPUBackend();
+        genes.backend = cpu;
+        genes.cal = synth.cal;
+        genes.pixVol = (float) (synth.cal.pixelWidth*synth.cal.pixelHeight*synth.cal.pixelDepth);
+        roi = synth.polygonRoi(roiVertices);
+        img = SyntheticStack.crop(synth.image("gene1"), roi);
+        mask = genes.roiMask(roi, img.getWidth(), img.getHeight());
+        dog = cpu.DOG(img, genes.minDOGDots, genes.maxDOGDots);
+        imgBin = cpu.detect(img, genes.minDOGDots, genes.maxDOGDots, genes.geneThreshold, new MaskedHistogram(null));
+        RNA_Scope_Nerve_Processing.clearOutSide(imgBin, mask);
+        pop = genes.findGenesPop(img, mask, true);
+        objectsFile = File.createTempFile("bench_", "_Objects.tif");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        objectsFile.delete();
+    }
+
+
+    @Benchmark
+    public RoiMask roiMask() {
+        return(genes.roiMask(roi, img.getWidth(), img.getHeight()));
+    }
+
+
+    @Benchmark
+    public double roiVolume() {
+        return(genes.roiVolume(mask, img.getNSlices()));
+    }
+
+
+    @Benchmark
+    public float[][] dog() {
+        return(cpu.DOG(img, genes.minDOGDots, genes.maxDOGDots));
+    }
+
+
+    @Benchmark
+    public float threshold() {
+        return(cpu.threshold(dog, genes.geneThreshold, new MaskedHistogram(null)));
+    }
+
+
+    @Benchmark
+    public float maskedThreshold() {
+        return(cpu.threshold(dog, genes.geneThreshold, new MaskedHistogram(mask)));
+    }
+
+
+    /**
+     * Binary stack is already cleared, each call does the same work
+     */
+    @Benchmark
+    public ImagePlus clearOutSide() {
+        RNA_Scope_Nerve_Processing.clearOutSide(imgBin, mask);
+        return(imgBin);
+    }
+
+
+    @Benchmark
+    public DotsPopulation labelAndFilter() throws IOException {
+        return(new Labeller3D().label(imgBin.getStack(), genes.cal, genes.minFoci, genes.maxFoci, false));
+    }
+
+
+    @Benchmark
+    public DotsPopulation labelKeepLabels() throws IOException {
+        return(new Labeller3D().label(imgBin.getStack(), genes.cal, genes.minFoci, genes.maxFoci, true));
+    }
+
+
+    @Benchmark
+    public DotsPopulation findGenesPop() throws IOException {
+        return(genes.findGenesPop(img, mask, false));
+    }
+
+
+    @Benchmark
+    public long saveGenesImage() throws IOException {
+        genes.saveGenesImage(new DotsPopulation[]{pop, pop}, objectsFile.getPath());
+        return(objectsFile.length());
+    }
+}
@@ -0,0 +1,140 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.awt.Rectangle;
+import ij.process.ShortProcessor;
+import java.util.Random;
+
+
+/**
+ * Reproducible synthetic 16-bit stacks of Gaussian dots and polygon rois for benchmarks
+ * Same parameters and seed give the same voxels on every run
+ * @author phm
+ */
+
+public class SyntheticStack {
+
+    public static final long SEED = 42;
+
+    // stack size in voxels
+    public int width = 512, height = 512, depth = 32;
+    // dots per million voxels
+    public double density = 100;
+    // dot Gaussian sigma in XY pixels (Z sigma is scaled by calibration ratio)
+    public double dotSigma = 1.5;
+    public double dotAmplitude = 2000;
+    public double background = 200;
+    // Gaussian noise standard deviation
+    public double noise = 20;
+    public long seed = SEED;
+    public Calibration cal = new Calibration();
+
+
+    public SyntheticStack() {
+        cal.pixelWidth = 0.065;
+        cal.pixelHeight = 0.065;
+        cal.pixelDepth = 0.2;
+        cal.setUnit("microns");
+    }
+
+
+    /**
+     * Parse size as WxHxD
+     * @param size
+     * @return this
+     */
+    public SyntheticStack size(String size) {
+        String[] dims = size.split("x");
+        width = Integer.parseInt(dims[0]);
+        height = Integer.parseInt(dims[1]);
+        depth = Integer.parseInt(dims[2]);
+        return(this);
+    }
+
+
+    /**
+     * Number of dots for density
+     * @return dots
+     */
+    public int nbDots() {
+        return((int) Math.round(density * width * height * depth / 1e6));
+    }
+
+
+    /**
+     * Build stack
+     * @param title
+     * @return 16-bit image
+     */
+    public ImagePlus image(String title) {
+        Random rnd = new Random(seed);
+        int n = width * height;
+        float[][] vox = new float[depth][n];
+        double sigmaZ = dotSigma * cal.pixelWidth / cal.pixelDepth;
+        int rxy = (int) Math.ceil(3 * dotSigma), rz = (int) Math.ceil(3 * sigmaZ);
+        for (int d = 0; d < nbDots(); d++) {
+            double cx = rnd.nextDouble() * width, cy = rnd.nextDouble() * height, cz = rnd.nextDouble() * depth;
+            double amp = dotAmplitude * (0.5 + rnd.nextDouble());
+            for (int z = Math.max(0, (int) cz - rz); z <= Math.min(depth - 1, (int) cz + rz); z++)
+                for (int y = Math.max(0, (int) cy - rxy); y <= Math.min(height - 1, (int) cy + rxy); y++)
+                    for (int x = Math.max(0, (int) cx - rxy); x <= Math.min(width - 1, (int) cx + rxy); x++) {
+                        double dx = (x - cx) / dotSigma, dy = (y - cy) / dotSigma, dz = (z - cz) / sigmaZ;
+                        vox[z][y * width + x] += amp * Math.exp(-0.5 * (dx * dx + dy * dy + dz * dz));
+                    }
+        }
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            short[] pix = new short[n];
+            for (int i = 0; i < n; i++) {
+                double v = background + vox[z][i] + noise * rnd.nextGaussian();
+                pix[i] = (short) Math.max(0, Math.min(65535, Math.round(v)));
+            }
+            stack.addSlice(new ShortProcessor(width, height, pix, null));
+        }
+        ImagePlus img = new ImagePlus(title, stack);
+        img.setDimensions(1, depth, 1);
+        img.setCalibration(cal);
+        return(img);
+    }
+
+
+    /**
+     * Star shaped polygon roi centered in stack, covering about half of the plane
+     * @param vertices
+     * @return roi
+     */
+    public Roi polygonRoi(int vertices) {
+        Random rnd = new Random(seed + 1);
+        float[] xs = new float[vertices], ys = new float[vertices];
+        double r0 = 0.4 * Math.min(width, height);
+        for (int i = 0; i < vertices; i++) {
+            double a = 2 * Math.PI * i / vertices;
+            double r = r0 * (0.7 + 0.3 * rnd.nextDouble());
+            xs[i] = (float) (width / 2.0 + r * Math.cos(a));
+            ys[i] = (float) (height / 2.0 + r * Math.sin(a));
+        }
+        Roi roi = new PolygonRoi(xs, ys, vertices, Roi.POLYGON);
+        roi.setName("synthetic");
+        return(roi);
+    }
+
+
+    /**
+     * Crop of roi bounding box, as read by openGenesChannels
+     * @param img
+     * @param roi
+     * @return crop
+     */
+    public static ImagePlus crop(ImagePlus img, Roi roi) {
+        Rectangle r = roi.getBounds();
+        ImagePlus crop = new ImagePlus(img.getTitle()+"_"+roi.getName(), img.getStack().crop(r.x, r.y, 0, r.width, r.height, img.getStackSize()));
+        crop.setDimensions(1, img.getStackSize(), 1);
+        crop.setCalibration(img.getCalibration());
+        return(crop);
+    }
+}
@@ -0,0 +1,516 @@
+package Genes_Tools;
+
+
+import ij.IJ;
+import ij.ImagePlus;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+
+
+/**
+ * Pipelined batch processing of rois
+ * decode -> detect -> measure/write stages, each with its own workers
+ * A memory budget limits the number of roi crops in flight, largest rois can be started first
+ * Results rows are written in the same order as the sequential run
+ * Rois found in results cache skip decode and detect stages, rois already committed by an interrupted run are skipped
+ * The first failed roi stops the batch : remaining rois skip their stages and release their memory budget
+ * @author phm
+ */
+
+public class BatchEngine {
+
+    private final RNA_Scope_Nerve_Processing genes;
+    private final int[] chIndex;
+    private final String outDirResults;
+    private final ResultsSink results;
+    // objects volume histograms rows, null = not written
+    public ResultsSink histograms = null;
+
+    // workers per stage
+    public int workers = 1;
+    // max bytes of roi crops in flight, 0 = half of max heap
+    public long memoryBudget = 0;
+    // rois are started largest image first, largest roi first (rows are still written in sequential order)
+    public boolean longestFirst = false;
+    // results cache, null = no cache
+    public ResultsCache cache = null;
+    // per stage metrics, written to metricsPrefix.tsv and metricsPrefix_summary.tsv (null = not written)
+    public final Metrics metrics = new Metrics();
+    public String metricsPrefix = null;
+
+    private Semaphore budget;
+    private int budgetMB;
+    // decoded rois waiting for or in detect stage, bounds decode read-ahead whatever the budget
+    private Semaphore inFlight;
+
+    // one reader per decode thread, reopened when image changes
+    private final ThreadLocal<ImageSession> threadSession = new ThreadLocal<>();
+    private final List<ImageSession> sessions = new ArrayList<>();
+    // idle readers of current image lent to detect stage of tiled and streamed rois
+    private final Map<String, ArrayDeque<ImageSession>> idleSessions = new HashMap<>();
+
+    // first roi failure, later stages are skipped
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    // rows waiting for previous rows
+    private final TreeMap<Integer, Object[][]> pendingRows = new TreeMap<>();
+    private int nextRow = 0;
+
+
+    public BatchEngine(RNA_Scope_Nerve_Processing genes, int[] chIndex, String outDirResults, ResultsSink results) {
+        this.genes = genes;
+        this.chIndex = chIndex;
+        this.outDirResults = outDirResults;
+        this.results = results;
+    }
+
+
+    /**
+     * Process all rois tasks
+     * @param tasks in sequential order
+     * @throws java.io.IOException
+     * @throws loci.formats.FormatException
+     */
+    public void run(List<RoiTask> tasks) throws IOException, FormatException {
+        long budgetBytes = (memoryBudget <= 0) ? Runtime.getRuntime().maxMemory() / 2 : memoryBudget;
+        budgetMB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, budgetBytes >> 20));
+        budget = new Semaphore(budgetMB, true);
+        // GPU backend is not thread safe
+        int detectWorkers = (genes.backend() instanceof CLIJ2Backend) ? 1 : workers;
+        inFlight = new Semaphore(2 * detectWorkers, true);
+        ExecutorService decodePool = Executors.newFixedThreadPool(workers);
+        ExecutorService detectPool = Executors.newFixedThreadPool(detectWorkers);
+        ExecutorService writePool = Executors.newFixedThreadPool(workers);
+        System.out.println("Batch with "+workers+" decode/write workers, "+detectWorkers+" detect workers, memory budget = "
+                +budgetMB+" MB"+((memoryBudget <= 0) ? " (half of max heap)" : "")+", "+(2 * detectWorkers)+" rois in flight");
+        boolean completed = false;
+        try {
+            // committed rows of replaced images or edited rois are not resumed
+            Map<String, String> fingerprints = new HashMap<>();
+            for (RoiTask task : tasks) {
+                String fp = fingerprints.get(task.imageFile);
+                if (fp == null) {
+                    fp = ResultsCache.fingerprint(task.imageFile);
+                    fingerprints.put(task.imageFile, fp);
+                }
+                task.roiKey = ResultsCache.roiKey(fp, task.roi);
+            }
+            nextRow = results.resume(tasks);
+            if (histograms != null) {
+                // both files keep the same rois
+                int done = histograms.resume(tasks.subList(0, nextRow));
+                if (done < nextRow)
+                    nextRow = results.resume(tasks.subList(0, done));
+            }
+            List<RoiTask> todo = tasks.subList(nextRow, tasks.size());
+            if (longestFirst)
+                todo = longestFirst(todo);
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (RoiTask task : todo) {
+                if (cache != null) {
+                    task.cacheKey = cache.key(task);
+                    // cached rois only go through measure stage, they have no labels for an objects image
+                    if (!genes.saveObjectsImage(task.index) && cache.restore(task)) {
+                        futures.add(CompletableFuture.runAsync(() -> measure(task), writePool)
+                                .whenComplete((v, ex) -> failed(ex)));
+                        continue;
+                    }
+                }
+                futures.add(CompletableFuture.supplyAsync(() -> decode(task), decodePool)
+                        .thenApplyAsync(this::detect, detectPool)
+                        .thenAcceptAsync(this::measure, writePool)
+                        .whenComplete((v, ex) -> {
+                            failed(ex);
+                            task.closeImages();
+                            budget.release(task.permits);
+                            task.permits = 0;
+                            if (task.inFlight)
+                                inFlight.release();
+                            task.inFlight = false;
+                        }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            if (cache != null)
+                System.out.println("Results cache : "+cache.hits+" of "+tasks.size()+" rois reused");
+            completed = true;
+            Map<String, Long> counters = genes.backend().counters();
+            if (!counters.isEmpty())
+                System.out.println("Backend : "+counters);
+            if (metricsPrefix != null) {
+                metrics.counters(counters);
+                metrics.write(metricsPrefix);
+            }
+        } catch (CompletionException ex) {
+            Throwable cause = (failure.get() != null) ? failure.get() : ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof FormatException)
+                throw (FormatException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw ex;
+        } finally {
+            decodePool.shutdownNow();
+            detectPool.shutdownNow();
+            writePool.shutdownNow();
+            genes.backend().close();
+            // sessions are closed once all workers are done
+            synchronized (sessions) {
+                for (ImageSession session : sessions)
+                    session.close();
+                sessions.clear();
+                idleSessions.clear();
+            }
+            // entries of rois measured before a failure are kept too
+            if (cache != null) {
+                try {
+                    cache.save();
+                } catch (IOException ex) {
+                    if (completed)
+                        throw ex;
+                    System.out.println("Results cache not saved : "+ex);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Keep first roi failure, cancelled stages of other rois are not failures
+     */
+    private void failed(Throwable ex) {
+        if (ex == null)
+            return;
+        Throwable cause = (ex instanceof CompletionException && ex.getCause() != null) ? ex.getCause() : ex;
+        if (!(cause instanceof CancellationException) && failure.compareAndSet(null, cause))
+            System.out.println("Batch stopped, roi failed : "+cause);
+    }
+
+
+    /**
+     * Skip stage once a roi has failed
+     */
+    private void checkFailure() {
+        if (failure.get() != null)
+            throw new CancellationException("Batch stopped after a failed roi");
+    }
+
+
+    /**
+     * Start order of tasks : images with most voxels first, rois of an image together with most voxels first
+     * @param tasks with estimated voxels
+     * @return tasks in start order
+     */
+    public static List<RoiTask> longestFirst(List<RoiTask> tasks) {
+        Map<String, Long> imageVoxels = new HashMap<>();
+        for (RoiTask task : tasks)
+            imageVoxels.merge(task.imageFile, task.voxels, Long::sum);
+        List<RoiTask> order = new ArrayList<>(tasks);
+        order.sort(Comparator.comparingLong((RoiTask task) -> -imageVoxels.get(task.imageFile))
+                .thenComparing(task -> task.imageFile)
+                .thenComparingLong(task -> -task.voxels));
+        return(order);
+    }
+
+
+    /**
+     * Session of current decode thread for image file
+     */
+    private ImageSession session(String file) throws Exception {
+        ImageSession session = threadSession.get();
+        if (session != null && session.file.equals(file))
+            return(session);
+        if (session != null) {
+            synchronized (sessions) {
+                sessions.remove(session);
+            }
+            session.close();
+        }
+        session = new ImageSession(file);
+        synchronized (sessions) {
+            sessions.add(session);
+        }
+        threadSession.set(session);
+        return(session);
+    }
+
+
+    /**
+     * Idle reader of image file for detect stage, opened if none
+     */
+    private ImageSession borrowSession(String file) throws Exception {
+        synchronized (sessions) {
+            ArrayDeque<ImageSession> idle = idleSessions.get(file);
+            if (idle != null && !idle.isEmpty())
+                return(idle.pollLast());
+        }
+        ImageSession session = new ImageSession(file);
+        synchronized (sessions) {
+            sessions.add(session);
+        }
+        return(session);
+    }
+
+
+    /**
+     * Give back reader borrowed by detect stage, idle readers of other images are closed
+     * (rois of an image are started together), reader of a failed detection is closed
+     */
+    private void returnSession(ImageSession session, boolean reusable) throws IOException {
+        List<ImageSession> closed = new ArrayList<>();
+        synchronized (sessions) {
+            if (reusable)
+                idleSessions.computeIfAbsent(session.file, f -> new ArrayDeque<>()).addLast(session);
+            else
+                closed.add(session);
+            for (Map.Entry<String, ArrayDeque<ImageSession>> e : idleSessions.entrySet())
+                if (!e.getKey().equals(session.file)) {
+                    closed.addAll(e.getValue());
+                    e.getValue().clear();
+                }
+            sessions.removeAll(closed);
+        }
+        for (ImageSession idle : closed)
+            idle.close();
+    }
+
+
+    /**
+     * Decode stage : read genes channels in roi, wait for memory budget
+     * @param task
+     * @return task
+     */
+    private RoiTask decode(RoiTask task) {
+        metrics.bind(task, "");
+        try {
+            checkFailure();
+            // decode does not read ahead of detect stage by more than its queue
+            inFlight.acquire();
+            task.inFlight = true;
+            checkFailure();
+            ImageSession session = session(task.imageFile);
+            if (task.roi == null) {
+                // no roi file, whole image
+                task.roi = genes.wholeImageRoi(session.reader.getSizeX(), session.reader.getSizeY());
+            }
+            Rectangle rect = task.roi.getBounds();
+            int nChannels = 0;
+            for (int c : chIndex)
+                if (c >= 0)
+                    nChannels++;
+            task.sizeZ = session.reader.getSizeZ();
+            long voxels = (long) rect.width * rect.height * task.sizeZ;
+            if (genes.useTiles(voxels)) {
+                // tiles are read in detect stage
+                task.tiled = true;
+                task.permits = 1;
+                budget.acquire(task.permits);
+                return(task);
+            }
+            if (genes.useStreaming(task.sizeZ)) {
+                // slabs are read in detect stage, planes in flight count in budget,
+                // and whole stack int labels of every gene when they are kept on heap
+                task.streamed = true;
+                long slabBytes = (long) rect.width * rect.height * SlabDetector.planesInFlight(genes.slabPlanes, SlabDetector.halo(genes))
+                        * genes.backend().bytesPerVoxel();
+                boolean keepLabels = genes.saveObjectsImage(task.index) || genes.colocalised(chIndex.length);
+                if (keepLabels && !genes.scratchStorage().isMapped())
+                    slabBytes += 4 * voxels * nChannels;
+                task.permits = (int) Math.min(budgetMB, Math.max(1, slabBytes >> 20));
+                budget.acquire(task.permits);
+                return(task);
+            }
+            long bytes = voxels * nChannels * FormatTools.getBytesPerPixel(session.reader.getPixelType());
+            task.permits = (int) Math.min(budgetMB, Math.max(1, bytes >> 20));
+            long t0 = Metrics.start();
+            budget.acquire(task.permits);
+            Metrics.stop("budget wait", t0, 0, bytes);
+            IJ.showStatus("Reading "+task.rootName+" roi "+task.roi.getName()+" ...");
+            task.imgGenes = session.openCrop(genes, task.roi, chIndex);
+            return(task);
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        } finally {
+            Metrics.unbind();
+        }
+    }
+
+
+    /**
+     * Detect stage : roi volume, genes dots and volumes
+     * @param task
+     * @return task
+     */
+    private RoiTask detect(RoiTask task) {
+        metrics.bind(task, "");
+        try {
+            checkFailure();
+            String roiName = task.roi.getName();
+            task.roiName = roiName;
+            Rectangle rect = task.roi.getBounds();
+            long t0 = Metrics.start();
+            RoiMask mask = genes.roiMask(task.roi, rect.width, rect.height);
+            task.roiVol = genes.roiVolume(mask, task.sizeZ);
+            Metrics.stop("roi mask", t0, (long) rect.width * rect.height, 0);
+            System.out.println("Roi "+roiName+ " vol = "+task.roiVol);
+            task.genesPop = new DotsPopulation[chIndex.length];
+            task.genesVol = new double[chIndex.length];
+            task.thresholds = new double[chIndex.length];
+            task.thresholdVoxels = new long[chIndex.length];
+            task.histograms = new VolumeHistogram[chIndex.length];
+            // labels are only kept for rois with objects image or colocalisation
+            boolean objectsImage = genes.saveObjectsImage(task.index);
+            boolean keepLabels = !task.tiled && (objectsImage || genes.colocalised(chIndex.length));
+            // tiled and streamed rois are read with a reader of the image borrowed for the detection
+            ImageSession ownSession = (task.tiled || task.streamed) ? borrowSession(task.imageFile) : null;
+            boolean detected = false;
+            try {
+                if (!task.tiled && !task.streamed) {
+                    // all genes in one backend session, sources are closed as soon as detection no longer needs them,
+                    // objects image is written from labels
+                    ImagePlus[] imgs = task.imgGenes;
+                    task.imgGenes = null;
+                    DotsPopulation[] pops = genes.findGenesPops(imgs, mask, keepLabels, true);
+                    System.arraycopy(pops, 0, task.genesPop, 0, pops.length);
+                }
+                for (int i = 0; i < chIndex.length; i++) {
+                    if (chIndex[i] < 0) {
+                        task.genesPop[i] = new DotsPopulation(rect.width, rect.height, task.sizeZ, genes.cal);
+                        continue;
+                    }
+                    metrics.bind(task, "gene"+(i+1));
+                    if (task.tiled)
+                        task.genesPop[i] = new TiledDetector(genes, ownSession.reader, task.roi, mask).findDots(chIndex[i]);
+                    else if (task.streamed)
+                        task.genesPop[i] = new SlabDetector(genes, ownSession.reader, task.roi, mask).findDots(chIndex[i], keepLabels);
+                    System.out.println(task.rootName+" "+roiName+" gene"+(i+1)+" found = "+task.genesPop[i].getNbObjects());
+                    task.genesVol[i] = task.genesPop[i].getVolume();
+                    task.thresholds[i] = task.genesPop[i].threshold;
+                    task.thresholdVoxels[i] = task.genesPop[i].thresholdVoxels;
+                    task.histograms[i] = VolumeHistogram.of(task.genesPop[i]);
+                }
+                detected = true;
+            } finally {
+                if (ownSession != null)
+                    returnSession(ownSession, detected);
+            }
+            if (genes.colocalised(chIndex.length)) {
+                long t0c = Metrics.start();
+                task.coloc = genes.colocalise(task.genesPop);
+                Metrics.stop("colocalisation", t0c, (long) rect.width * rect.height * task.sizeZ, 0);
+                if (task.coloc == null)
+                    System.out.println("Tiled roi "+roiName+", no colocalisation");
+                else
+                    System.out.println(task.rootName+" "+roiName+" gene1 dots overlapping gene2 = "+task.coloc.overlapping+", within "+genes.colocDistance+" µm = "+task.coloc.near);
+                if (!objectsImage)
+                    for (int i = 0; i < chIndex.length; i++)
+                        task.genesPop[i] = task.genesPop[i].withoutLabels();
+            }
+            // crops are closed and mapped labels are off heap, next rois can be read
+            if (genes.scratchStorage().isMapped()) {
+                budget.release(task.permits);
+                task.permits = 0;
+            }
+            return(task);
+        } catch (Exception ex) {
+            throw new CompletionException(ex);
+        } finally {
+            Metrics.unbind();
+        }
+    }
+
+
+    /**
+     * Measure stage : write results row and objects image
+     * @param task
+     */
+    private void measure(RoiTask task) {
+        metrics.bind(task, "");
+        try {
+            checkFailure();
+            measureRoi(task);
+        } finally {
+            Metrics.unbind();
+        }
+    }
+
+
+    private void measureRoi(RoiTask task) {
+        long t0 = Metrics.start();
+        String roiName = task.roiName;
+
+        // Write parameters, columns as in RNA_Scope_Nerve_Processing.resultsColumns
+        IJ.showStatus("Writing parameters ...");
+        // cache entry first, it is saved with the commit of its row
+        if (cache != null && !task.cached)
+            cache.put(task);
+        writeRow(task.index, task.roiKey, genes.resultsRow(task), DotCounts.row(task, genes.cal.pixelWidth*genes.cal.pixelHeight*genes.cal.pixelDepth));
+        Metrics.stop("results row", t0, 0, 0);
+        if (task.cached)
+            return;
+
+        // save image objects
+        if (!genes.saveObjectsImage(task.index))
+            return;
+        if (task.tiled) {
+            System.out.println("Tiled roi "+roiName+", no objects image");
+            return;
+        }
+        IJ.showStatus("Save images objects ...");
+        String path = outDirResults + task.rootName+"_"+roiName+"_Objects.tif";
+        try {
+            t0 = Metrics.start();
+            genes.saveGenesImage(task.genesPop, path);
+            Metrics.stop("objects image", t0, (long) task.genesPop[0].width * task.genesPop[0].height * task.sizeZ, new File(path).length());
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+
+    /**
+     * Add rows to results and histograms when all previous rows are added,
+     * results cache is saved each time results rows are committed
+     * @param index
+     * @param roiKey roi key committed with rows
+     * @param row results row
+     * @param histRow histograms row
+     */
+    private void writeRow(int index, String roiKey, Object[] row, Object[] histRow) {
+        synchronized (pendingRows) {
+            pendingRows.put(index, new Object[][]{row, histRow, {roiKey}});
+            try {
+                int committed = results.committedRows();
+                while (!pendingRows.isEmpty() && pendingRows.firstKey() == nextRow) {
+                    Object[][] rows = pendingRows.pollFirstEntry().getValue();
+                    String key = (String) rows[2][0];
+                    results.add(rows[0], key);
+                    if (histograms != null)
+                        histograms.add(rows[1], key);
+                    nextRow++;
+                }
+                if (cache != null && results.committedRows() != committed)
+                    cache.save();
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+        }
+    }
+}
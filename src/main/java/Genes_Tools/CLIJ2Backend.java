@@ -0,0 +1,393 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Map;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+import net.haesleinhuepf.clij2.plugins.StatisticsOfLabelledPixels;
+
+
+/**
+ * GPU detection backend using CLIJ2
+ * All device buffers come from a pool reused across rois and channels, methods taking a buffer
+ * give it back to the pool only when documented (DOG), other buffers are given back by their caller
+ * @author phm
+ */
+
+public class CLIJ2Backend implements DetectionBackend {
+    
+    public final CLIJ2 clij2;
+    // mask, labelling and size filter on GPU, only labels statistics are pulled
+    public boolean labelOnGPU = true;
+    
+    // last roi mask pushed, reused for all genes of a roi
+    private RoiMask mask = null;
+    private ClearCLBuffer maskCL = null;
+    
+    // device buffers, free ones up to a quarter of device memory are kept
+    public final GpuBufferPool pool;
+    
+    
+    public CLIJ2Backend(CLIJ2 clij2) {
+        this.clij2 = clij2;
+        this.pool = new GpuBufferPool(clij2, availableMemory() / 4);
+    }
+    
+    
+    @Override
+    public String getName() {
+        return("CLIJ2");
+    }
+    
+    
+    /**
+     * Difference of Gaussians 
+     * Using CLIJ2
+     * @param imgCL given back to pool
+     * @param sizeX1
+     * @param sizeY1
+     * @param sizeZ1
+     * @param sizeX2
+     * @param sizeY2
+     * @param sizeZ2
+     * @return imgGauss from pool
+     */ 
+    public ClearCLBuffer DOG(ClearCLBuffer imgCL, double sizeX1, double sizeY1, double sizeZ1, double sizeX2, double sizeY2, double sizeZ2) {
+        ClearCLBuffer imgCLDOG = pool.acquire(imgCL);
+        DOG(imgCL, imgCLDOG, sizeX1, sizeY1, sizeZ1, sizeX2, sizeY2, sizeZ2);
+        pool.release(imgCL);
+        return(imgCLDOG);
+    }
+    
+    
+    /**
+     * Difference of Gaussians in existing buffer, source is not released
+     */
+    private void DOG(ClearCLBuffer imgCL, ClearCLBuffer imgCLDOG, double sizeX1, double sizeY1, double sizeZ1, double sizeX2, double sizeY2, double sizeZ2) {
+        long t0 = Metrics.start();
+        clij2.differenceOfGaussian3D(imgCL, imgCLDOG, sizeX1, sizeY1, sizeZ1, sizeX2, sizeY2, sizeZ2);
+        Metrics.stop("dog", t0, voxels(imgCL), 0);
+    }
+    
+    
+    /**
+     * Push image to device
+     * @param img
+     * @return buffer from pool
+     */
+    private ClearCLBuffer push(ImagePlus img) {
+        long t0 = Metrics.start();
+        ClearCLBuffer imgCL = pool.push(img);
+        Metrics.stop("push", t0, Metrics.voxels(img), 0, Metrics.bytes(img), 0);
+        return(imgCL);
+    }
+    
+    
+    /**
+     * Pull buffer from device
+     * @param imgCL
+     * @return image
+     */
+    private ImagePlus pull(ClearCLBuffer imgCL) {
+        long t0 = Metrics.start();
+        ImagePlus img = clij2.pull(imgCL);
+        Metrics.stop("pull", t0, voxels(imgCL), 0, 0, imgCL.getSizeInBytes());
+        return(img);
+    }
+    
+    
+    private static long voxels(ClearCLBuffer imgCL) {
+        return(imgCL.getWidth() * imgCL.getHeight() * imgCL.getDepth());
+    }
+    
+    
+    @Override
+    public float[][] DOG(ImagePlus img, double sigma1, double sigma2, double sigmaZ1, double sigmaZ2) {
+        ClearCLBuffer imgCL = push(img);
+        ClearCLBuffer imgCLDOG = DOG(imgCL, sigma1, sigma1, sigmaZ1, sigma2, sigma2, sigmaZ2);
+        ImageStack stackDOG = pull(imgCLDOG).getStack();
+        pool.release(imgCLDOG);
+        float[][] dog = new float[stackDOG.getSize()][];
+        for (int z = 0; z < dog.length; z++)
+            dog[z] = (float[]) stackDOG.getProcessor(z+1).convertToFloatProcessor().getPixels();
+        return(dog);
+    }
+    
+    
+    /**
+     * Device global memory
+     * @return bytes
+     */
+    @Override
+    public long availableMemory() {
+        return(clij2.getCLIJ().getClearCLContext().getDevice().getGlobalMemorySizeInBytes());
+    }
+    
+    
+    /**
+     * Source, DoG, binary and float labels buffers on device
+     * @return bytes
+     */
+    @Override
+    public int bytesPerVoxel() {
+        return(16);
+    }
+    
+    
+    /**
+     * Threshold with threshold value and voxels count in histogram
+     * Masked : histogram is streamed plane by plane on host inside roi mask, no masked copy of the stack
+     * Not masked : CLIJ2 automatic threshold, value is the min DoG of thresholded voxels
+     * @param imgCLDOG not released
+     * @param imgCLBin binary output
+     * @param thMethod
+     * @param hist
+     */
+    private void threshold(ClearCLBuffer imgCLDOG, ClearCLBuffer imgCLBin, String thMethod, MaskedHistogram hist) {
+        long t0 = Metrics.start();
+        long pulled = 0;
+        if (hist.isMasked()) {
+            int nz = (int) imgCLDOG.getDepth();
+            ClearCLBuffer imgCLSlice = pool.acquire(new long[]{imgCLDOG.getWidth(), imgCLDOG.getHeight()}, imgCLDOG.getNativeType());
+            for (int pass = 0; pass < 2; pass++) {
+                for (int z = 0; z < nz; z++) {
+                    clij2.copySlice(imgCLDOG, imgCLSlice, z);
+                    float[] slice = (float[]) clij2.pull(imgCLSlice).getProcessor().convertToFloatProcessor().getPixels();
+                    pulled += imgCLSlice.getSizeInBytes();
+                    if (pass == 0)
+                        hist.addRange(slice);
+                    else
+                        hist.addValues(slice);
+                }
+            }
+            pool.release(imgCLSlice);
+            clij2.threshold(imgCLDOG, imgCLBin, hist.computeThreshold(thMethod));
+        }
+        else {
+            clij2.automaticThreshold(imgCLDOG, imgCLBin, thMethod);
+            hist.threshold = (float) clij2.minimumOfMaskedPixels(imgCLDOG, imgCLBin);
+            hist.count = imgCLDOG.getWidth() * imgCLDOG.getHeight() * imgCLDOG.getDepth();
+        }
+        Metrics.stop("threshold", t0, voxels(imgCLDOG), 0, 0, pulled);
+    }
+    
+    
+    @Override
+    public ImagePlus detect(ImagePlus img, double sigma1, double sigma2, double sigmaZ1, double sigmaZ2, String thMethod, MaskedHistogram hist) {
+        ClearCLBuffer imgCLMed = push(img);
+        // DOG gives source back to pool
+        ClearCLBuffer imgCLDOG = DOG(imgCLMed, sigma1, sigma1, sigmaZ1, sigma2, sigma2, sigmaZ2);
+        ClearCLBuffer imgCLBin = pool.acquire(imgCLDOG);
+        threshold(imgCLDOG, imgCLBin, thMethod, hist);
+        pool.release(imgCLDOG);
+        ImagePlus imgBin = pull(imgCLBin);
+        pool.release(imgCLBin);
+        imgBin.setCalibration(img.getCalibration());
+        return(imgBin);
+    }
+    
+    
+    /**
+     * Push roi mask as 0/1 plane, only once per roi
+     * @param roiMask
+     * @return mask buffer
+     */
+    private ClearCLBuffer pushMask(RoiMask roiMask) {
+        if (roiMask == mask)
+            return(maskCL);
+        if (maskCL != null)
+            pool.release(maskCL);
+        ByteProcessor mask01 = (ByteProcessor) roiMask.getMask().duplicate();
+        mask01.multiply(1.0/255);
+        maskCL = push(new ImagePlus("mask", mask01));
+        mask = roiMask;
+        return(maskCL);
+    }
+    
+    
+    /**
+     * Whole detect chain on GPU
+     * DoG, threshold, roi mask multiplied across Z, labelling and size filter on device
+     * only voxels count per label is pulled back (labels stack only if keepLabels)
+     * source image is released once pushed
+     */
+    @Override
+    public DotsPopulation findDots(ImagePlus img, RoiMask roiMask, RNA_Scope_Nerve_Processing genes, boolean keepLabels, boolean release) throws IOException {
+        if (!labelOnGPU)
+            return(DetectionBackend.super.findDots(img, roiMask, genes, keepLabels, release));
+        ChannelBuffers buffers = new ChannelBuffers();
+        try {
+            ClearCLBuffer imgCL = push(img);
+            Calibration cal = img.getCalibration();
+            if (release)
+                genes.closeImages(img);
+            return(findDots(imgCL, buffers, cal, roiMask, genes, keepLabels));
+        } finally {
+            buffers.release();
+        }
+    }
+    
+    
+    /**
+     * All genes channels of a roi in one CLIJ2 session
+     * Channels are pushed together when source and working buffers fit in half the device memory,
+     * one after the other otherwise; DoG, binary and labels buffers are shared by all channels
+     */
+    @Override
+    public DotsPopulation[] findDots(ImagePlus[] imgs, RoiMask roiMask, RNA_Scope_Nerve_Processing genes, boolean keepLabels, boolean release) throws IOException {
+        if (!labelOnGPU)
+            return(DetectionBackend.super.findDots(imgs, roiMask, genes, keepLabels, release));
+        DotsPopulation[] pops = new DotsPopulation[imgs.length];
+        long pushBytes = 0, voxels = 0;
+        Calibration cal = null;
+        for (ImagePlus img : imgs)
+            if (img != null) {
+                pushBytes += Metrics.bytes(img);
+                voxels = Metrics.voxels(img);
+                cal = img.getCalibration();
+            }
+        if (cal == null)
+            return(pops);
+        boolean batch = pushBytes + voxels * bytesPerVoxel() <= availableMemory() / 2;
+        ClearCLBuffer[] imgsCL = new ClearCLBuffer[imgs.length];
+        ChannelBuffers buffers = new ChannelBuffers();
+        try {
+            if (batch)
+                for (int c = 0; c < imgs.length; c++)
+                    if (imgs[c] != null) {
+                        Metrics.context("gene"+(c+1));
+                        imgsCL[c] = push(imgs[c]);
+                        if (release)
+                            genes.closeImages(imgs[c]);
+                    }
+            for (int c = 0; c < imgs.length; c++) {
+                if (imgs[c] == null)
+                    continue;
+                Metrics.context("gene"+(c+1));
+                if (!batch) {
+                    imgsCL[c] = push(imgs[c]);
+                    if (release)
+                        genes.closeImages(imgs[c]);
+                }
+                ClearCLBuffer imgCL = imgsCL[c];
+                imgsCL[c] = null;
+                pops[c] = findDots(imgCL, buffers, cal, roiMask, genes, keepLabels);
+            }
+        } finally {
+            for (ClearCLBuffer imgCL : imgsCL)
+                if (imgCL != null)
+                    pool.release(imgCL);
+            buffers.release();
+        }
+        return(pops);
+    }
+    
+    
+    /**
+     * Working buffers of detection, taken from pool for the first channel and reused by the next ones
+     */
+    private class ChannelBuffers {
+        ClearCLBuffer dog, bin, labels, filtered;
+        
+        void create(ClearCLBuffer imgCL) {
+            if (dog != null)
+                return;
+            dog = pool.acquire(imgCL);
+            bin = pool.acquire(imgCL);
+            labels = pool.acquire(imgCL.getDimensions(), NativeTypeEnum.Float);
+            filtered = pool.acquire(labels);
+        }
+        
+        void release() {
+            for (ClearCLBuffer b : new ClearCLBuffer[]{dog, bin, labels, filtered})
+                if (b != null)
+                    pool.release(b);
+            dog = bin = labels = filtered = null;
+        }
+    }
+    
+    
+    /**
+     * Detect chain of one pushed channel, source buffer is given back to pool after DoG
+     */
+    private DotsPopulation findDots(ClearCLBuffer imgCL, ChannelBuffers buffers, Calibration cal, RoiMask roiMask,
+            RNA_Scope_Nerve_Processing genes, boolean keepLabels) throws IOException {
+        int width = (int) imgCL.getWidth(), height = (int) imgCL.getHeight(), depth = (int) imgCL.getDepth();
+        double pixVol = cal.pixelWidth*cal.pixelHeight*cal.pixelDepth;
+        double sigma1 = genes.minDOGDots, sigma2 = genes.maxDOGDots;
+        buffers.create(imgCL);
+        DOG(imgCL, buffers.dog, sigma1, sigma1, genes.minDOGDotsZ, sigma2, sigma2, genes.maxDOGDotsZ);
+        pool.release(imgCL);
+        MaskedHistogram hist = new MaskedHistogram(genes.maskedThreshold ? roiMask : null);
+        threshold(buffers.dog, buffers.bin, genes.geneThreshold, hist);
+        ClearCLBuffer imgCLBin = buffers.bin;
+        long voxels = voxels(imgCLBin);
+        if (roiMask != null && !roiMask.isFull()) {
+            ClearCLBuffer maskPlane = pushMask(roiMask);
+            long t0 = Metrics.start();
+            // DoG is no longer needed, its buffer gets the masked binary
+            clij2.multiplyStackWithPlane(imgCLBin, maskPlane, buffers.dog);
+            imgCLBin = buffers.dog;
+            Metrics.stop("clearOutSide", t0, voxels, 0);
+        }
+        long t0 = Metrics.start();
+        clij2.connectedComponentsLabelingBox(imgCLBin, buffers.labels);
+        Metrics.stop("label", t0, voxels, 0);
+        t0 = Metrics.start();
+        ClearCLBuffer imgCLFiltered = buffers.filtered;
+        clij2.excludeLabelsOutsideSizeRange(buffers.labels, imgCLFiltered, genes.minFoci/pixVol, genes.maxFoci/pixVol);
+        
+        // labels statistics table
+        int nbObjects = (int) clij2.maximumOfAllPixels(imgCLFiltered);
+        int[] sizes = new int[nbObjects];
+        if (nbObjects > 0) {
+            double[][] stats = clij2.statisticsOfLabelledPixels(imgCLFiltered, imgCLFiltered);
+            for (int l = 0; l < nbObjects; l++)
+                sizes[l] = (int) stats[l][StatisticsOfLabelledPixels.STATISTICS_ENTRY.PIXEL_COUNT.value];
+        }
+        Metrics.stop("size filter", t0, voxels, 0, 0, (long) nbObjects * StatisticsOfLabelledPixels.STATISTICS_ENTRY.values().length * 8);
+        IntBuffer[] labels = null;
+        if (keepLabels) {
+            ImageStack stack = pull(imgCLFiltered).getStack();
+            labels = genes.scratchStorage().intSlices(stack.getSize(), width*height);
+            int[] values = new int[width*height];
+            for (int z = 0; z < stack.getSize(); z++) {
+                float[] pix = (float[]) stack.getPixels(z+1);
+                int[] lab = labels[z].hasArray() ? labels[z].array() : values;
+                for (int n = 0; n < pix.length; n++)
+                    lab[n] = (int) pix[n];
+                if (!labels[z].hasArray())
+                    ScratchStorage.put(labels[z], lab);
+                // pulled slice no longer needed
+                stack.setPixels(null, z+1);
+            }
+        }
+        DotsPopulation pop = new DotsPopulation(width, height, depth, cal, sizes, labels);
+        pop.threshold = hist.threshold;
+        pop.thresholdVoxels = hist.count;
+        return(pop);
+    }
+    
+    
+    @Override
+    public Map<String, Long> counters() {
+        return(pool.counters());
+    }
+    
+    
+    @Override
+    public void close() {
+        if (maskCL != null)
+            pool.release(maskCL);
+        maskCL = null;
+        mask = null;
+        pool.clear();
+    }
+}
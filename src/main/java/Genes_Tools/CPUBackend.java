@@ -0,0 +1,246 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * CPU detection backend, pure Java
+ * Separable 3D Gaussians difference + 256 bins automatic threshold on float arrays,
+ * parallelised across Z slabs with fork-join
+ *
+ * Tolerance against CLIJ2 backend :
+ * CLIJ2 writes DoG in the input pixel type, so for 8/16-bit images DoG is clamped to 0 and rounded here too.
+ * Binary masks are the same (unmasked threshold) except for voxels whose DoG is within one histogram bin
+ * ((max-min)/255) of the threshold and voxels closer than the kernel radius (4 sigma) to the stack borders
+ * where the two Gaussian kernels are truncated differently.
+ * Dots numbers agree within 5% (EquivalenceCheck.COUNT_TOLERANCE, checked by the bench smoke profile).
+ * @author phm
+ */
+
+public class CPUBackend implements DetectionBackend {
+
+    // slices per fork-join task
+    private static final int SLAB = 2;
+
+    private final ForkJoinPool pool;
+
+
+    public CPUBackend() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public CPUBackend(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+
+    @Override
+    public String getName() {
+        return("CPU");
+    }
+
+
+    /**
+     * Slice operation
+     */
+    private interface SliceTask {
+        void run(int z);
+    }
+
+
+    /**
+     * Split Z range in slabs
+     */
+    private static class SlabAction extends RecursiveAction {
+        private final int z0, z1;
+        private final SliceTask task;
+
+        SlabAction(int z0, int z1, SliceTask task) {
+            this.z0 = z0;
+            this.z1 = z1;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (z1 - z0 <= SLAB) {
+                for (int z = z0; z < z1; z++)
+                    task.run(z);
+            }
+            else {
+                int mid = (z0 + z1) >>> 1;
+                invokeAll(new SlabAction(z0, mid, task), new SlabAction(mid, z1, task));
+            }
+        }
+    }
+
+
+    private void forEachSlice(int nz, SliceTask task) {
+        pool.invoke(new SlabAction(0, nz, task));
+    }
+
+
+    /**
+     * Normalized Gaussian kernel, radius 4 sigma
+     * @param sigma
+     * @return kernel
+     */
+    private float[] kernel(double sigma) {
+        int radius = Math.max(1, (int) Math.ceil(4 * sigma));
+        float[] k = new float[2 * radius + 1];
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            k[i + radius] = (float) Math.exp(-(i * i) / (2 * sigma * sigma));
+            sum += k[i + radius];
+        }
+        for (int i = 0; i < k.length; i++)
+            k[i] /= sum;
+        return(k);
+    }
+
+
+    /**
+     * Separable 3D Gaussian blur with clamped borders
+     * @param in
+     * @param out
+     * @param tmp
+     * @param width
+     * @param height
+     * @param sigma XY sigma
+     * @param sigmaZ Z sigma
+     */
+    private void gauss3D(float[][] in, float[][] out, float[][] tmp, int width, int height, double sigma, double sigmaZ) {
+        final float[] k = kernel(sigma);
+        final int r = k.length / 2;
+        final float[] kz = (sigmaZ == sigma) ? k : kernel(sigmaZ);
+        final int rz = kz.length / 2;
+        final int nz = in.length;
+        // X and Y in each slice
+        forEachSlice(nz, z -> {
+            float[] src = in[z];
+            float[] dst = tmp[z];
+            for (int y = 0; y < height; y++) {
+                int row = y * width;
+                for (int x = 0; x < width; x++) {
+                    float sum = 0;
+                    for (int i = -r; i <= r; i++) {
+                        int xx = Math.min(width - 1, Math.max(0, x + i));
+                        sum += k[i + r] * src[row + xx];
+                    }
+                    dst[row + x] = sum;
+                }
+            }
+            float[] col = new float[height];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++)
+                    col[y] = dst[y * width + x];
+                for (int y = 0; y < height; y++) {
+                    float sum = 0;
+                    for (int i = -r; i <= r; i++) {
+                        int yy = Math.min(height - 1, Math.max(0, y + i));
+                        sum += k[i + r] * col[yy];
+                    }
+                    dst[y * width + x] = sum;
+                }
+            }
+        });
+        // Z
+        forEachSlice(nz, z -> {
+            float[] dst = out[z];
+            Arrays.fill(dst, 0);
+            for (int i = -rz; i <= rz; i++) {
+                float[] src = tmp[Math.min(nz - 1, Math.max(0, z + i))];
+                float w = kz[i + rz];
+                for (int n = 0; n < dst.length; n++)
+                    dst[n] += w * src[n];
+            }
+        });
+    }
+
+
+    /**
+     * Difference of Gaussians
+     * @param img
+     * @param sigma1
+     * @param sigma2
+     * @param sigmaZ1
+     * @param sigmaZ2
+     * @return DoG slices
+     */
+    @Override
+    public float[][] DOG(ImagePlus img, double sigma1, double sigma2, double sigmaZ1, double sigmaZ2) {
+        long t0 = Metrics.start();
+        ImageStack stack = img.getStack();
+        int width = img.getWidth(), height = img.getHeight(), nz = stack.getSize();
+        float[][] in = new float[nz][];
+        forEachSlice(nz, z -> in[z] = (float[]) stack.getProcessor(z+1).convertToFloatProcessor().getPixels());
+        float[][] tmp = new float[nz][width*height];
+        float[][] dog = new float[nz][width*height];
+        float[][] gauss2 = new float[nz][width*height];
+        gauss3D(in, dog, tmp, width, height, sigma1, sigmaZ1);
+        gauss3D(in, gauss2, tmp, width, height, sigma2, sigmaZ2);
+        // same pixel type as CLIJ2 output
+        final float maxValue = (img.getBitDepth() == 8) ? 255 : 65535;
+        final boolean quantize = img.getBitDepth() != 32;
+        forEachSlice(nz, z -> {
+            float[] d = dog[z];
+            float[] g = gauss2[z];
+            for (int n = 0; n < d.length; n++) {
+                float v = d[n] - g[n];
+                if (quantize)
+                    v = (v < 0) ? 0 : Math.min(maxValue, Math.round(v));
+                d[n] = v;
+            }
+        });
+        Metrics.stop("dog", t0, Metrics.voxels(img), 0);
+        return(dog);
+    }
+
+
+    /**
+     * Automatic threshold value on 256 bins histogram
+     * @param dog
+     * @param thMethod
+     * @param hist histogram, restricted to roi mask if masked
+     * @return threshold
+     */
+    public float threshold(float[][] dog, String thMethod, MaskedHistogram hist) {
+        forEachSlice(dog.length, z -> hist.addRange(dog[z]));
+        forEachSlice(dog.length, z -> hist.addValues(dog[z]));
+        return(hist.computeThreshold(thMethod));
+    }
+
+
+    @Override
+    public ImagePlus detect(ImagePlus img, double sigma1, double sigma2, double sigmaZ1, double sigmaZ2, String thMethod, MaskedHistogram hist) {
+        int width = img.getWidth(), height = img.getHeight();
+        float[][] dog = DOG(img, sigma1, sigma2, sigmaZ1, sigmaZ2);
+        long t0 = Metrics.start();
+        float th = threshold(dog, thMethod, hist);
+        Metrics.stop("threshold", t0, Metrics.voxels(img), 0);
+        t0 = Metrics.start();
+        ImageProcessor[] ips = new ImageProcessor[dog.length];
+        forEachSlice(dog.length, z -> {
+            byte[] bin = new byte[width*height];
+            float[] d = dog[z];
+            for (int n = 0; n < d.length; n++)
+                if (d[n] >= th)
+                    bin[n] = (byte) 255;
+            ips[z] = new ByteProcessor(width, height, bin);
+        });
+        ImageStack stackBin = new ImageStack(width, height);
+        for (ImageProcessor ip : ips)
+            stackBin.addSlice(ip);
+        ImagePlus imgBin = new ImagePlus(img.getTitle()+"_bin", stackBin);
+        imgBin.setCalibration(img.getCalibration());
+        Metrics.stop("binarize", t0, Metrics.voxels(img), 0);
+        return(imgBin);
+    }
+}
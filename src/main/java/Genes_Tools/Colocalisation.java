@@ -0,0 +1,138 @@
+package Genes_Tools;
+
+
+import ij.measure.Calibration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Gene1 / Gene2 colocalisation in one roi
+ * One pass over both labels images gives objects centroids and gene1 objects sharing voxels with a gene2 object.
+ * Gene2 centroids are put in a uniform grid of cells of distance size, each gene1 centroid only visits
+ * the 27 cells around it, so cost grows linearly with voxels and dots instead of gene1 x gene2 pairs
+ * @author phm
+ */
+
+public class Colocalisation {
+
+    // gene1 objects sharing at least one voxel with a gene2 object
+    public final long overlapping;
+    // gene1 objects overlapping or with centroid within distance (calibrated) of a gene2 object centroid
+    public final long near;
+
+
+    public Colocalisation(long overlapping, long near) {
+        this.overlapping = overlapping;
+        this.near = near;
+    }
+
+
+    /**
+     * Calibrated centroids of objects, labels sums are x, y, z per object
+     */
+    private static double[] centroids(double[] sums, int[] sizes, Calibration cal) {
+        for (int o = 0; o < sizes.length; o++) {
+            sums[3*o] *= cal.pixelWidth / sizes[o];
+            sums[3*o + 1] *= cal.pixelHeight / sizes[o];
+            sums[3*o + 2] *= cal.pixelDepth / sizes[o];
+        }
+        return(sums);
+    }
+
+
+    /**
+     * Grid cell of point, cells indexes are packed on 21 bits each (a collision only adds candidates)
+     */
+    private static long cell(long cx, long cy, long cz) {
+        return(((cx & 0x1FFFFF) << 42) | ((cy & 0x1FFFFF) << 21) | (cz & 0x1FFFFF));
+    }
+
+
+    /**
+     * Colocalisation of gene1 dots with gene2 dots of the same roi
+     * @param pop1 gene1 dots, labels kept (null = no channel)
+     * @param pop2 gene2 dots, labels kept (null = no channel)
+     * @param distance max centroids distance (calibrated), 0 = overlap only
+     * @return colocalisation, null if labels of a population with objects were not kept
+     */
+    public static Colocalisation of(DotsPopulation pop1, DotsPopulation pop2, double distance) {
+        int n1 = (pop1 == null) ? 0 : pop1.getNbObjects(), n2 = (pop2 == null) ? 0 : pop2.getNbObjects();
+        if (n1 == 0 || n2 == 0)
+            return(new Colocalisation(0, 0));
+        if (pop1.labels == null || pop2.labels == null)
+            return(null);
+        int width = pop1.width, size = pop1.width * pop1.height;
+        double[] c1 = new double[3*n1], c2 = new double[3*n2];
+        boolean[] overlap = new boolean[n1];
+        int[] values1 = new int[size], values2 = new int[size];
+        for (int z = 0; z < pop1.depth; z++) {
+            int[] lab1 = ScratchStorage.get(pop1.labels[z], values1);
+            int[] lab2 = ScratchStorage.get(pop2.labels[z], values2);
+            for (int n = 0; n < size; n++) {
+                int l1 = lab1[n], l2 = lab2[n];
+                if (l1 == 0 && l2 == 0)
+                    continue;
+                int x = n % width, y = n / width;
+                if (l1 > 0) {
+                    int o = 3*(l1 - 1);
+                    c1[o] += x;
+                    c1[o + 1] += y;
+                    c1[o + 2] += z;
+                    if (l2 > 0)
+                        overlap[l1 - 1] = true;
+                }
+                if (l2 > 0) {
+                    int o = 3*(l2 - 1);
+                    c2[o] += x;
+                    c2[o + 1] += y;
+                    c2[o + 2] += z;
+                }
+            }
+        }
+        long overlapping = 0;
+        for (boolean o : overlap)
+            if (o)
+                overlapping++;
+        if (distance <= 0)
+            return(new Colocalisation(overlapping, overlapping));
+        centroids(c1, pop1.sizes, pop1.cal);
+        centroids(c2, pop2.sizes, pop2.cal);
+
+        // gene2 centroids per grid cell
+        Map<Long, List<Integer>> grid = new HashMap<>();
+        for (int o = 0; o < n2; o++)
+            grid.computeIfAbsent(cell((long) (c2[3*o] / distance), (long) (c2[3*o + 1] / distance), (long) (c2[3*o + 2] / distance)),
+                    k -> new ArrayList<>()).add(o);
+        double d2 = distance * distance;
+        long near = 0;
+        for (int o = 0; o < n1; o++) {
+            if (overlap[o]) {
+                near++;
+                continue;
+            }
+            double x = c1[3*o], y = c1[3*o + 1], z = c1[3*o + 2];
+            long cx = (long) (x / distance), cy = (long) (y / distance), cz = (long) (z / distance);
+            boolean found = false;
+            for (long dz = -1; dz <= 1 && !found; dz++)
+                for (long dy = -1; dy <= 1 && !found; dy++)
+                    for (long dx = -1; dx <= 1 && !found; dx++) {
+                        List<Integer> candidates = grid.get(cell(cx + dx, cy + dy, cz + dz));
+                        if (candidates == null)
+                            continue;
+                        for (int c : candidates) {
+                            double ddx = c2[3*c] - x, ddy = c2[3*c + 1] - y, ddz = c2[3*c + 2] - z;
+                            if (ddx*ddx + ddy*ddy + ddz*ddz <= d2) {
+                                found = true;
+                                break;
+                            }
+                        }
+                    }
+            if (found)
+                near++;
+        }
+        return(new Colocalisation(overlapping, near));
+    }
+}
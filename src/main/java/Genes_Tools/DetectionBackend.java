@@ -0,0 +1,189 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Dots detection backend : DoG filtering + automatic threshold
+ * Backend is picked at startup with system property rnascope.backend (auto, clij2, cpu)
+ * auto uses CLIJ2 and falls back to CPU if no OpenCL device is found
+ * @author phm
+ */
+
+public interface DetectionBackend {
+    
+    /**
+     * Backend name
+     * @return name
+     */
+    public String getName();
+    
+    /**
+     * Difference of Gaussians and automatic threshold
+     * @param img
+     * @param sigma1 XY sigma of first Gaussian
+     * @param sigma2 XY sigma of second Gaussian
+     * @param sigmaZ1 Z sigma of first Gaussian
+     * @param sigmaZ2 Z sigma of second Gaussian
+     * @param thMethod
+     * @param hist threshold histogram, restricted to roi if masked, gets threshold value and voxels count
+     * @return binary image
+     */
+    public ImagePlus detect(ImagePlus img, double sigma1, double sigma2, double sigmaZ1, double sigmaZ2, String thMethod, MaskedHistogram hist);
+    
+    
+    /**
+     * Difference of Gaussians and automatic threshold, same sigmas in XY and Z
+     * @param img
+     * @param sigma1
+     * @param sigma2
+     * @param thMethod
+     * @param hist
+     * @return binary image
+     */
+    public default ImagePlus detect(ImagePlus img, double sigma1, double sigma2, String thMethod, MaskedHistogram hist) {
+        return(detect(img, sigma1, sigma2, sigma1, sigma2, thMethod, hist));
+    }
+    
+    
+    /**
+     * Difference of Gaussians pulled back as float slices
+     * @param img
+     * @param sigma1 XY sigma of first Gaussian
+     * @param sigma2 XY sigma of second Gaussian
+     * @param sigmaZ1 Z sigma of first Gaussian
+     * @param sigmaZ2 Z sigma of second Gaussian
+     * @return DoG slices
+     */
+    public float[][] DOG(ImagePlus img, double sigma1, double sigma2, double sigmaZ1, double sigmaZ2);
+    
+    
+    /**
+     * Difference of Gaussians pulled back as float slices, same sigmas in XY and Z
+     * @param img
+     * @param sigma1
+     * @param sigma2
+     * @return DoG slices
+     */
+    public default float[][] DOG(ImagePlus img, double sigma1, double sigma2) {
+        return(DOG(img, sigma1, sigma2, sigma1, sigma2));
+    }
+    
+    
+    /**
+     * Memory available for detection in bytes
+     * @return bytes
+     */
+    public default long availableMemory() {
+        Runtime rt = Runtime.getRuntime();
+        return(rt.maxMemory() - (rt.totalMemory() - rt.freeMemory()));
+    }
+    
+    
+    /**
+     * Memory used by detection per voxel of crop in bytes
+     * float source, 2 Gaussians, DoG, binary and labels
+     * @return bytes
+     */
+    public default int bytesPerVoxel() {
+        return(24);
+    }
+    
+    
+    /**
+     * Detect, clear outside roi, label and filter dots on volume
+     * Default is backend detection + CPU labelling
+     * @param img
+     * @param mask roi mask (null = whole image)
+     * @param genes detection parameters
+     * @param keepLabels labels are kept in genes scratch storage
+     * @param release close img as soon as detection no longer needs it
+     * @return dots population
+     * @throws java.io.IOException
+     */
+    public default DotsPopulation findDots(ImagePlus img, RoiMask mask, RNA_Scope_Nerve_Processing genes, boolean keepLabels, boolean release) throws IOException {
+        Calibration cal = img.getCalibration();
+        MaskedHistogram hist = new MaskedHistogram(genes.maskedThreshold ? mask : null);
+        ImagePlus imgBin = detect(img, genes.minDOGDots, genes.maxDOGDots, genes.minDOGDotsZ, genes.maxDOGDotsZ, genes.geneThreshold, hist);
+        if (release)
+            genes.closeImages(img);
+        long t0 = Metrics.start();
+        if (mask != null)
+            RNA_Scope_Nerve_Processing.clearOutSide(imgBin, mask);
+        Metrics.stop("clearOutSide", t0, Metrics.voxels(imgBin), 0);
+        t0 = Metrics.start();
+        DotsPopulation pop = new Labeller3D(genes.scratchStorage()).label(imgBin.getStack(), cal, genes.minFoci, genes.maxFoci, keepLabels);
+        Metrics.stop("label", t0, Metrics.voxels(imgBin), 0);
+        pop.threshold = hist.threshold;
+        pop.thresholdVoxels = hist.count;
+        imgBin.flush();
+        imgBin.close();
+        return(pop);
+    }
+    
+    
+    /**
+     * Detect dots of all genes channels of a roi
+     * Default detects channels one after the other, metrics context is the gene
+     * @param imgs genes images, null entries give null populations
+     * @param mask roi mask (null = whole image)
+     * @param genes detection parameters
+     * @param keepLabels labels are kept in genes scratch storage
+     * @param release close images as soon as detection no longer needs them
+     * @return dots populations
+     * @throws java.io.IOException
+     */
+    public default DotsPopulation[] findDots(ImagePlus[] imgs, RoiMask mask, RNA_Scope_Nerve_Processing genes, boolean keepLabels, boolean release) throws IOException {
+        DotsPopulation[] pops = new DotsPopulation[imgs.length];
+        for (int c = 0; c < imgs.length; c++)
+            if (imgs[c] != null) {
+                Metrics.context("gene"+(c+1));
+                pops[c] = findDots(imgs[c], mask, genes, keepLabels, release);
+            }
+        return(pops);
+    }
+    
+    
+    /**
+     * Backend counters of the run (device buffers reuse)
+     * @return counters by name
+     */
+    public default Map<String, Long> counters() {
+        return(Collections.emptyMap());
+    }
+    
+    
+    /**
+     * Release backend resources
+     */
+    public default void close() {
+    }
+    
+    
+    /**
+     * Pick detection backend
+     * @return backend
+     */
+    public static DetectionBackend select() {
+        String name = System.getProperty("rnascope.backend", "auto");
+        if (!name.equals("cpu")) {
+            try {
+                CLIJ2 clij2 = CLIJ2.getInstance();
+                System.out.println("Using CLIJ2 backend on "+clij2.getGPUName());
+                return(new CLIJ2Backend(clij2));
+            } catch (Exception | LinkageError ex) {
+                System.out.println("No OpenCL device found : "+ex.getMessage());
+                if (name.equals("clij2"))
+                    throw new IllegalStateException("CLIJ2 backend requested but no OpenCL device found", ex);
+            }
+        }
+        System.out.println("Using CPU backend");
+        return(new CPUBackend());
+    }
+}
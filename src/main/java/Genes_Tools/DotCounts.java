@@ -0,0 +1,167 @@
+package Genes_Tools;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Dots numbers recomputed from objects volume histograms (histograms.tsv), no image is read
+ * Fixed : genes volume / single dot volume, as in results.xls
+ * Fitted : single dot volume is the mode of the histograms pooled over all rois,
+ * each object counts max(1, round(volume / single dot volume))
+ * @author phm
+ */
+
+public class DotCounts {
+
+    /**
+     * Histograms file columns : image, roi, voxel volume, then objects, voxels and histogram of each gene
+     * @param nGenes
+     * @return columns
+     */
+    public static String[] columns(int nGenes) {
+        String[] cols = new String[3 + 3*nGenes];
+        cols[0] = "ImageName";
+        cols[1] = "ROI name";
+        cols[2] = "Voxel volume";
+        for (int g = 0; g < nGenes; g++) {
+            cols[3 + 3*g] = "Gene"+(g+1)+" objects";
+            cols[4 + 3*g] = "Gene"+(g+1)+" voxels";
+            cols[5 + 3*g] = "Gene"+(g+1)+" volume histogram";
+        }
+        return(cols);
+    }
+
+
+    public static Class<?>[] types(int nGenes) {
+        Class<?>[] types = new Class<?>[3 + 3*nGenes];
+        types[0] = String.class;
+        types[1] = String.class;
+        types[2] = Double.class;
+        for (int g = 0; g < nGenes; g++) {
+            types[3 + 3*g] = Long.class;
+            types[4 + 3*g] = Long.class;
+            types[5 + 3*g] = String.class;
+        }
+        return(types);
+    }
+
+
+    /**
+     * Histograms row of roi
+     * @param task
+     * @param voxVol
+     * @return row
+     */
+    public static Object[] row(RoiTask task, double voxVol) {
+        int nGenes = task.histograms.length;
+        Object[] row = new Object[3 + 3*nGenes];
+        row[0] = task.rootName;
+        row[1] = task.roiName;
+        row[2] = voxVol;
+        for (int g = 0; g < nGenes; g++) {
+            VolumeHistogram h = task.histograms[g];
+            row[3 + 3*g] = h.objects;
+            row[4 + 3*g] = h.voxels;
+            row[5 + 3*g] = h.toString();
+        }
+        return(row);
+    }
+
+
+    /**
+     * Histograms files of results folder, all shards
+     * @param outDirResults
+     * @return files
+     */
+    public static List<File> files(String outDirResults) {
+        List<File> files = new ArrayList<>();
+        File[] list = new File(outDirResults).listFiles((dir, name) -> name.startsWith("histograms") && name.endsWith(".tsv"));
+        if (list != null)
+            for (File f : list)
+                files.add(f);
+        files.sort(null);
+        return(files);
+    }
+
+
+    /**
+     * Write dots numbers of all rois of histograms files
+     * @param files histograms files
+     * @param singleDotVol fixed single dot volume
+     * @param outFile
+     * @throws java.io.IOException
+     */
+    public static void write(List<File> files, double singleDotVol, String outFile) throws IOException {
+        // genes number from first file header, files of other genes numbers are skipped
+        List<String[]> rows = new ArrayList<>();
+        int nGenes = 0;
+        for (File f : files)
+            try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+                String line = in.readLine();
+                if (line == null)
+                    continue;
+                int fileGenes = (line.split("\t", -1).length - 3) / 3;
+                if (nGenes == 0)
+                    nGenes = fileGenes;
+                if (fileGenes != nGenes) {
+                    System.out.println("Skipping "+f.getName()+" : "+fileGenes+" genes instead of "+nGenes);
+                    continue;
+                }
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length == 3 + 3*nGenes)
+                        rows.add(fields);
+                }
+            }
+        // histograms and pooled histogram of each gene
+        int n = rows.size();
+        VolumeHistogram[][] hists = new VolumeHistogram[nGenes][n];
+        VolumeHistogram[] pooled = new VolumeHistogram[nGenes];
+        for (int g = 0; g < nGenes; g++)
+            pooled[g] = new VolumeHistogram();
+        for (int r = 0; r < n; r++)
+            for (int g = 0; g < nGenes; g++) {
+                String[] row = rows.get(r);
+                hists[g][r] = VolumeHistogram.parse(Long.parseLong(row[3 + 3*g]), Long.parseLong(row[4 + 3*g]), row[5 + 3*g]);
+                pooled[g].merge(hists[g][r]);
+            }
+        double[] singleVoxels = new double[nGenes];
+        for (int g = 0; g < nGenes; g++)
+            singleVoxels[g] = pooled[g].mode();
+        double voxVol = (n == 0) ? 0 : Double.parseDouble(rows.get(0)[2]);
+        for (int g = 0; g < nGenes; g++)
+            System.out.println(String.format(Locale.US, "Gene%d fitted single dot volume = %.4f µm3 on %d objects", g + 1, singleVoxels[g] * voxVol, pooled[g].objects));
+
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(outFile))) {
+            StringBuilder header = new StringBuilder("ImageName\tROI name");
+            for (int g = 1; g <= nGenes; g++)
+                header.append("\tGene").append(g).append(" objects\tGene").append(g).append((g == 1) ? " Volume" : " volume")
+                        .append("\tEstimated gene").append(g).append(" dots number\tGene").append(g).append(" fitted single dot volume")
+                        .append("\tFitted gene").append(g).append(" dots number");
+            out.write(header.append("\n").toString());
+            for (int r = 0; r < n; r++) {
+                String[] row = rows.get(r);
+                double rowVoxVol = Double.parseDouble(row[2]);
+                StringBuilder sb = new StringBuilder(row[0]+"\t"+row[1]);
+                for (int g = 0; g < nGenes; g++) {
+                    VolumeHistogram h = hists[g][r];
+                    double vol = h.voxels * rowVoxVol;
+                    double estimatedNb = (int) Math.round(vol/singleDotVol);
+                    sb.append("\t").append(h.objects).append("\t").append(vol).append("\t").append(estimatedNb)
+                            .append("\t").append(singleVoxels[g] * rowVoxVol).append("\t").append(h.estimateDots(singleVoxels[g]));
+                }
+                out.write(sb.append("\n").toString());
+            }
+        }
+        System.out.println(n+" rois dots numbers written to "+outFile);
+    }
+}
@@ -0,0 +1,85 @@
+package Genes_Tools;
+
+
+import ij.measure.Calibration;
+import java.nio.IntBuffer;
+
+
+/**
+ * Dots found by Labeller3D
+ * Number of objects and volumes are kept in primitive arrays
+ * @author phm
+ */
+
+public class DotsPopulation {
+    
+    public final int width, height, depth;
+    public final Calibration cal;
+    // voxels number of each object, object label = index + 1
+    public final int[] sizes;
+    // labels per slice (heap or mapped, see ScratchStorage), null if labels were not kept
+    public final IntBuffer[] labels;
+    // threshold value and voxels counted in threshold histogram
+    public double threshold = 0;
+    public long thresholdVoxels = 0;
+    
+    
+    public DotsPopulation(int width, int height, int depth, Calibration cal, int[] sizes, IntBuffer[] labels) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.cal = cal;
+        this.sizes = sizes;
+        this.labels = labels;
+    }
+    
+    
+    /**
+     * Empty population
+     * @param width
+     * @param height
+     * @param depth
+     * @param cal
+     */
+    public DotsPopulation(int width, int height, int depth, Calibration cal) {
+        this(width, height, depth, cal, new int[0], null);
+    }
+    
+    
+    public int getNbObjects() {
+        return(sizes.length);
+    }
+    
+    
+    /**
+     * Voxel volume in calibrated unit
+     * @return 
+     */
+    public double getVoxelVolume() {
+        return(cal.pixelWidth*cal.pixelHeight*cal.pixelDepth);
+    }
+    
+    
+    /**
+     * Sum volume of objects
+     * @return vol
+     */
+    public double getVolume() {
+        long voxels = 0;
+        for (int s : sizes)
+            voxels += s;
+        return(voxels*getVoxelVolume());
+    }
+    
+    
+    /**
+     * Same objects without labels, labels storage can be freed
+     * @return population
+     */
+    public DotsPopulation withoutLabels() {
+        DotsPopulation dots = new DotsPopulation(width, height, depth, cal, sizes, null);
+        dots.threshold = threshold;
+        dots.thresholdVoxels = thresholdVoxels;
+        return(dots);
+    }
+}
@@ -0,0 +1,204 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.haesleinhuepf.clij2.CLIJ2;
+
+
+/**
+ * Device buffers reused across rois and channels, keyed by dimensions and pixel type
+ * Ownership : the pool owns all buffers, acquire and push hand a buffer to the caller,
+ * which gives it back once with release; releasing a buffer twice or a buffer not handed out throws.
+ * Buffers are only freed on the device when free buffers exceed maxFreeBytes (least recently released first) or on clear.
+ * Images up to MAX_STAGING_BYTES are pushed into pooled buffers through one host staging buffer, kept for the whole run
+ * outside the batch memory budget; larger images (and RGB) are pushed by clij2 into new device buffers
+ * @author phm
+ */
+
+public class GpuBufferPool {
+
+    private final CLIJ2 clij2;
+    // free buffers per key and in release order
+    private final Map<String, ArrayDeque<ClearCLBuffer>> free = new HashMap<>();
+    private final ArrayDeque<ClearCLBuffer> freeOrder = new ArrayDeque<>();
+    private final Set<ClearCLBuffer> inUse = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long freeBytes = 0;
+    private ByteBuffer staging = null;
+
+    // largest image pushed through the staging buffer
+    public static final long MAX_STAGING_BYTES = 256L << 20;
+
+    // max bytes of free buffers kept on device
+    public long maxFreeBytes;
+    public long hits = 0, misses = 0, evictions = 0;
+
+
+    public GpuBufferPool(CLIJ2 clij2, long maxFreeBytes) {
+        this.clij2 = clij2;
+        this.maxFreeBytes = maxFreeBytes;
+    }
+
+
+    private static String key(long[] dims, NativeTypeEnum type) {
+        return(Arrays.toString(dims)+type);
+    }
+
+
+    /**
+     * Buffer of dimensions and type, reused if a free one exists
+     * @param dims
+     * @param type
+     * @return buffer owned by caller
+     */
+    public synchronized ClearCLBuffer acquire(long[] dims, NativeTypeEnum type) {
+        ArrayDeque<ClearCLBuffer> buffers = free.get(key(dims, type));
+        ClearCLBuffer buffer = (buffers == null) ? null : buffers.pollLast();
+        if (buffer != null) {
+            hits++;
+            freeOrder.remove(buffer);
+            freeBytes -= buffer.getSizeInBytes();
+        }
+        else {
+            misses++;
+            buffer = clij2.create(dims, type);
+        }
+        inUse.add(buffer);
+        return(buffer);
+    }
+
+
+    /**
+     * Buffer of same dimensions and type
+     * @param like
+     * @return buffer owned by caller
+     */
+    public ClearCLBuffer acquire(ClearCLBuffer like) {
+        return(acquire(like.getDimensions(), like.getNativeType()));
+    }
+
+
+    /**
+     * Give buffer back to pool
+     * @param buffer handed out by this pool
+     */
+    public synchronized void release(ClearCLBuffer buffer) {
+        if (!inUse.remove(buffer))
+            throw new IllegalStateException("Buffer released twice or not from pool");
+        free.computeIfAbsent(key(buffer.getDimensions(), buffer.getNativeType()), k -> new ArrayDeque<>()).addLast(buffer);
+        freeOrder.addLast(buffer);
+        freeBytes += buffer.getSizeInBytes();
+        while (freeBytes > maxFreeBytes && !freeOrder.isEmpty()) {
+            ClearCLBuffer old = freeOrder.pollFirst();
+            free.get(key(old.getDimensions(), old.getNativeType())).remove(old);
+            freeBytes -= old.getSizeInBytes();
+            clij2.release(old);
+            evictions++;
+        }
+    }
+
+
+    /**
+     * Device type of image pixels
+     * @param img
+     * @return type, null if not pushed through staging (RGB)
+     */
+    private static NativeTypeEnum nativeType(ImagePlus img) {
+        switch (img.getBitDepth()) {
+            case 8 :
+                return(NativeTypeEnum.UnsignedByte);
+            case 16 :
+                return(NativeTypeEnum.UnsignedShort);
+            case 32 :
+                return(NativeTypeEnum.Float);
+            default :
+                return(null);
+        }
+    }
+
+
+    /**
+     * Push image in a pooled buffer, single slice images give a 2D buffer as clij2.push
+     * @param img
+     * @return buffer owned by caller
+     */
+    public synchronized ClearCLBuffer push(ImagePlus img) {
+        NativeTypeEnum type = nativeType(img);
+        ImageStack stack = img.getStack();
+        int depth = stack.getSize();
+        long bytes = (long) img.getWidth() * img.getHeight() * depth * img.getBytesPerPixel();
+        if (type == null || bytes > MAX_STAGING_BYTES) {
+            // not pooled type or too large for staging, buffer is still owned by pool
+            ClearCLBuffer buffer = clij2.push(img);
+            misses++;
+            inUse.add(buffer);
+            return(buffer);
+        }
+        long[] dims = (depth == 1) ? new long[]{img.getWidth(), img.getHeight()} : new long[]{img.getWidth(), img.getHeight(), depth};
+        ClearCLBuffer buffer = acquire(dims, type);
+        if (staging == null || staging.capacity() < bytes)
+            staging = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        staging.clear();
+        for (int z = 1; z <= depth; z++) {
+            Object pixels = stack.getPixels(z);
+            if (pixels instanceof byte[])
+                staging.put((byte[]) pixels);
+            else if (pixels instanceof short[]) {
+                short[] pix = (short[]) pixels;
+                staging.asShortBuffer().put(pix);
+                staging.position(staging.position() + pix.length * 2);
+            }
+            else {
+                float[] pix = (float[]) pixels;
+                staging.asFloatBuffer().put(pix);
+                staging.position(staging.position() + pix.length * 4);
+            }
+        }
+        staging.flip();
+        buffer.readFrom(staging, true);
+        return(buffer);
+    }
+
+
+    /**
+     * Free all pooled buffers on device, buffers still handed out are freed too
+     */
+    public synchronized void clear() {
+        for (Iterator<ClearCLBuffer> it = inUse.iterator(); it.hasNext();) {
+            clij2.release(it.next());
+            it.remove();
+        }
+        for (ClearCLBuffer buffer : freeOrder)
+            clij2.release(buffer);
+        free.clear();
+        freeOrder.clear();
+        freeBytes = 0;
+        staging = null;
+    }
+
+
+    /**
+     * Pool counters
+     * @return hits, misses and evictions
+     */
+    public synchronized Map<String, Long> counters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("gpu pool hits", hits);
+        counters.put("gpu pool misses", misses);
+        counters.put("gpu pool evictions", evictions);
+        return(counters);
+    }
+}
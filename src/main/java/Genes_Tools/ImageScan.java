@@ -0,0 +1,349 @@
+package Genes_Tools;
+
+
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Metadata-only scan of images before a batch
+ * Metadata and ROI files of all images are read in parallel, no pixel is decoded.
+ * Each image is checked against the reference image (channels names, physical sizes, ROIs inside image),
+ * rejected images are skipped with their reason, the manifest lists all images with their estimated voxels
+ * With the metadata cache (scan.tsv in Results folder, keyed by image file fingerprint) images read in a previous run
+ * are not opened again, only their ROI files are read
+ * @author phm
+ */
+
+public class ImageScan {
+
+    /**
+     * Metadata of one image
+     */
+    public static class ImageInfo {
+        public final String file;
+        public final String rootName;
+        public String[] channels;
+        public Calibration cal;
+        public int sizeX, sizeY, sizeZ, sizeC;
+        // null if no roi file, whole image is used
+        public ArrayList<Roi> rois;
+        // rejection reason, null if image is processed
+        public String error;
+
+        public ImageInfo(String file) {
+            this.file = file;
+            this.rootName = FilenameUtils.getBaseName(file);
+        }
+
+        /**
+         * Rois to process, null roi (whole image) if no roi file
+         */
+        List<Roi> taskRois() {
+            return((rois == null) ? Arrays.asList((Roi) null) : rois);
+        }
+    }
+
+    // relative tolerance on physical sizes
+    public static final double CAL_TOLERANCE = 1e-3;
+    // metadata cache fields before channels : fingerprint, XY and Z pixel sizes, sizeX, sizeY, sizeZ, sizeC
+    private static final int METADATA_FIELDS = 7;
+
+    private final RNA_Scope_Nerve_Processing genes;
+    // image file fingerprint -> metadata fields, null if metadata cache is not used
+    private Map<String, String[]> metadata = null;
+    private File metadataFile;
+    private boolean metadataChanged = false;
+    // images in files order
+    public final List<ImageInfo> images = new ArrayList<>();
+    public ImageInfo reference;
+
+
+    public ImageScan(RNA_Scope_Nerve_Processing genes) {
+        this.genes = genes;
+    }
+
+
+    /**
+     * Reuse metadata of images read in previous runs, entries of all shards are loaded, only own file is written
+     * @param outDirResults
+     * @param fileName metadata cache file name
+     * @throws java.io.IOException
+     */
+    public void useMetadataCache(String outDirResults, String fileName) throws IOException {
+        metadata = new LinkedHashMap<>();
+        metadataFile = new File(outDirResults, fileName);
+        File[] files = new File(outDirResults).listFiles((dir, name) -> name.startsWith("scan") && name.endsWith(".tsv"));
+        if (files == null)
+            return;
+        for (File f : files) {
+            try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length > METADATA_FIELDS)
+                        metadata.put(fields[0], fields);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Fill info with cached metadata
+     * @return true if image was found in metadata cache
+     */
+    private synchronized boolean restoreMetadata(String fingerprint, ImageInfo info) {
+        String[] m = metadata.get(fingerprint);
+        if (m == null)
+            return(false);
+        info.cal = new Calibration();
+        info.cal.pixelWidth = Double.parseDouble(m[1]);
+        info.cal.pixelHeight = info.cal.pixelWidth;
+        info.cal.pixelDepth = Double.parseDouble(m[2]);
+        info.cal.setUnit("microns");
+        info.sizeX = Integer.parseInt(m[3]);
+        info.sizeY = Integer.parseInt(m[4]);
+        info.sizeZ = Integer.parseInt(m[5]);
+        info.sizeC = Integer.parseInt(m[6]);
+        info.channels = Arrays.copyOfRange(m, METADATA_FIELDS, m.length);
+        return(true);
+    }
+
+
+    private synchronized void putMetadata(String fingerprint, ImageInfo info) {
+        String[] m = new String[METADATA_FIELDS + info.channels.length];
+        m[0] = fingerprint;
+        m[1] = String.valueOf(info.cal.pixelWidth);
+        m[2] = String.valueOf(info.cal.pixelDepth);
+        m[3] = String.valueOf(info.sizeX);
+        m[4] = String.valueOf(info.sizeY);
+        m[5] = String.valueOf(info.sizeZ);
+        m[6] = String.valueOf(info.sizeC);
+        System.arraycopy(info.channels, 0, m, METADATA_FIELDS, info.channels.length);
+        metadata.put(fingerprint, m);
+        metadataChanged = true;
+    }
+
+
+    /**
+     * Write metadata cache file if new images were read
+     * @throws java.io.IOException
+     */
+    private void saveMetadata() throws IOException {
+        if (!metadataChanged)
+            return;
+        File tmp = new File(metadataFile.getPath()+".tmp");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(tmp))) {
+            for (String[] m : metadata.values()) {
+                out.write(String.join("\t", m));
+                out.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), metadataFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        metadataChanged = false;
+    }
+
+
+    /**
+     * Read metadata and rois of image, errors are kept in info
+     * @param imageDir
+     * @param file
+     * @return info
+     */
+    public ImageInfo info(String imageDir, String file) {
+        ImageInfo info = new ImageInfo(file);
+        ImageSession session = null;
+        try {
+            String fingerprint = (metadata == null) ? null : ResultsCache.fingerprint(file);
+            if (fingerprint == null || !restoreMetadata(fingerprint, info)) {
+                session = new ImageSession(file);
+                info.channels = genes.findChannels(file, session.meta, session.reader);
+                info.cal = RNA_Scope_Nerve_Processing.imageCalib(session.meta);
+                info.sizeX = session.reader.getSizeX();
+                info.sizeY = session.reader.getSizeY();
+                info.sizeZ = session.reader.getSizeZ();
+                info.sizeC = session.reader.getSizeC();
+                if (fingerprint != null)
+                    putMetadata(fingerprint, info);
+            }
+            info.rois = genes.findRois(imageDir, info.rootName);
+        } catch (Exception ex) {
+            info.error = "unreadable : "+ex;
+        } finally {
+            try {
+                if (session != null)
+                    session.close();
+            } catch (IOException ex) {
+                // metadata already read
+            }
+        }
+        return(info);
+    }
+
+
+    /**
+     * Scan images in parallel and validate them against reference image
+     * @param imageDir
+     * @param files
+     * @param referenceFile image of channels and calibration (null = first image)
+     * @throws java.io.IOException
+     */
+    public void scan(String imageDir, List<String> files, String referenceFile) throws IOException {
+        long t0 = System.currentTimeMillis();
+        List<String> all = new ArrayList<>(files);
+        if (referenceFile != null && !all.contains(referenceFile))
+            all.add(referenceFile);
+        // metadata reads are mostly I/O wait, pool does not depend on batch workers
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), all.size())));
+        try {
+            List<Future<ImageInfo>> futures = new ArrayList<>();
+            for (String f : all)
+                futures.add(pool.submit(() -> info(imageDir, f)));
+            for (int i = 0; i < all.size(); i++) {
+                ImageInfo info = futures.get(i).get();
+                if (i < files.size())
+                    images.add(info);
+                if (all.get(i).equals((referenceFile == null) ? all.get(0) : referenceFile))
+                    reference = info;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Images scan interrupted", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        if (metadata != null)
+            saveMetadata();
+        if (reference != null && reference.error != null)
+            throw new IOException("Reference image "+reference.rootName+" "+reference.error);
+        int rejected = 0;
+        for (ImageInfo info : images) {
+            if (info.error == null)
+                info.error = validate(info);
+            if (info.error != null) {
+                rejected++;
+                System.out.println("Rejected "+info.rootName+" : "+info.error);
+            }
+        }
+        System.out.println("Scanned "+images.size()+" images in "+(System.currentTimeMillis() - t0)+" ms, "+rejected+" rejected");
+    }
+
+
+    private static boolean sameSize(double a, double b) {
+        return(Math.abs(a - b) <= CAL_TOLERANCE * Math.max(Math.abs(a), Math.abs(b)));
+    }
+
+
+    /**
+     * Check image against reference
+     * @param info
+     * @return rejection reason, null if valid
+     */
+    public String validate(ImageInfo info) {
+        if (!Arrays.equals(info.channels, reference.channels))
+            return("channels "+Arrays.toString(info.channels)+" instead of "+Arrays.toString(reference.channels));
+        if (!sameSize(info.cal.pixelWidth, reference.cal.pixelWidth) || !sameSize(info.cal.pixelDepth, reference.cal.pixelDepth))
+            return("pixel size "+info.cal.pixelWidth+" x "+info.cal.pixelDepth+" instead of "+reference.cal.pixelWidth+" x "+reference.cal.pixelDepth);
+        if (info.sizeZ < 1)
+            return("no Z plane");
+        if (info.rois != null) {
+            if (info.rois.isEmpty())
+                return("empty roi file");
+            Rectangle image = new Rectangle(info.sizeX, info.sizeY);
+            for (Roi roi : info.rois)
+                if (!image.contains(roi.getBounds()))
+                    return("roi "+roi.getName()+" "+roi.getBounds()+" outside image "+info.sizeX+"x"+info.sizeY);
+        }
+        return(null);
+    }
+
+
+    /**
+     * Voxels read for genes channels in roi
+     * @param info
+     * @param roi null = whole image
+     * @param chIndex
+     * @return voxels
+     */
+    private static long voxels(ImageInfo info, Roi roi, int[] chIndex) {
+        int nChannels = 0;
+        for (int c : chIndex)
+            if (c >= 0)
+                nChannels++;
+        Rectangle rect = (roi == null) ? new Rectangle(info.sizeX, info.sizeY) : roi.getBounds();
+        return((long) rect.width * rect.height * info.sizeZ * nChannels);
+    }
+
+
+    /**
+     * Rois tasks of valid images in files order, with estimated voxels
+     * @param chIndex
+     * @return tasks
+     */
+    public ArrayList<RoiTask> tasks(int[] chIndex) {
+        ArrayList<RoiTask> tasks = new ArrayList<>();
+        for (ImageInfo info : images) {
+            if (info.error != null)
+                continue;
+            for (Roi roi : info.taskRois()) {
+                RoiTask task = new RoiTask(tasks.size(), info.file, info.rootName, roi);
+                task.voxels = voxels(info, roi, chIndex);
+                tasks.add(task);
+            }
+        }
+        return(tasks);
+    }
+
+
+    /**
+     * Write manifest : one row per image with status, metadata, rois and estimated voxels
+     * @param path
+     * @param chIndex
+     * @throws java.io.IOException
+     */
+    public void writeManifest(String path, int[] chIndex) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(path))) {
+            out.write("ImageName\tStatus\tChannels\tXY pixel size\tZ pixel size\tSizeX\tSizeY\tSizeZ\tSizeC\tROIs\tEstimated voxels\n");
+            for (ImageInfo info : images) {
+                StringBuilder sb = new StringBuilder(info.rootName).append('\t').append((info.error == null) ? "OK" : "Rejected : "+info.error);
+                if (info.cal == null) {
+                    out.write(sb.append("\t\t\t\t\t\t\t\t\t\n").toString());
+                    continue;
+                }
+                long voxels = 0;
+                List<Roi> rois = info.taskRois();
+                for (Roi roi : rois)
+                    voxels += voxels(info, roi, chIndex);
+                sb.append('\t').append(String.join(",", Arrays.copyOf(info.channels, info.channels.length - 1)))
+                        .append('\t').append(String.format(Locale.US, "%.4f\t%.4f", info.cal.pixelWidth, info.cal.pixelDepth))
+                        .append('\t').append(info.sizeX).append('\t').append(info.sizeY).append('\t').append(info.sizeZ).append('\t').append(info.sizeC)
+                        .append('\t').append((info.rois == null) ? "whole image" : String.valueOf(rois.size()))
+                        .append('\t').append(voxels);
+                out.write(sb.append('\n').toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import java.io.Closeable;
+import java.io.IOException;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * One open Bio-Formats reader per image
+ * Metadata and subblocks directory are parsed once, crops are read for every roi
+ * @author phm
+ */
+
+public class ImageSession implements Closeable {
+    
+    public final String file;
+    public final ImageProcessorReader reader;
+    public final IMetadata meta;
+    
+    // timing in ns
+    public long metaTime = 0;
+    public long readTime = 0;
+    
+    
+    /**
+     * Open image file and parse its metadata
+     * @param file
+     * @throws loci.common.services.DependencyException
+     * @throws loci.common.services.ServiceException
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImageSession(String file) throws DependencyException, ServiceException, FormatException, IOException {
+        this(file, true);
+    }
+    
+    
+    /**
+     * Open image file and parse its metadata
+     * @param file
+     * @param flattenedResolutions pyramid levels as series (Bio-Formats default) or as resolutions of series
+     * @throws loci.common.services.DependencyException
+     * @throws loci.common.services.ServiceException
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImageSession(String file, boolean flattenedResolutions) throws DependencyException, ServiceException, FormatException, IOException {
+        this.file = file;
+        long t0 = System.nanoTime();
+        // create OME-XML metadata store of the latest schema version
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        meta = service.createOMEXMLMetadata();
+        reader = new ImageProcessorReader();
+        reader.setMetadataStore(meta);
+        reader.setFlattenedResolutions(flattenedResolutions);
+        reader.setId(file);
+        metaTime = System.nanoTime() - t0;
+    }
+    
+    
+    /**
+     * Read genes channels in roi bounding box
+     * @param genes
+     * @param roi
+     * @param chIndex
+     * @return genes images
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus[] openCrop(RNA_Scope_Nerve_Processing genes, Roi roi, int[] chIndex) throws FormatException, IOException {
+        long t0 = System.nanoTime();
+        ImagePlus[] imgs = genes.openGenesChannels(reader, roi, chIndex);
+        readTime += System.nanoTime() - t0;
+        return(imgs);
+    }
+    
+    
+    /**
+     * Close reader and log timing
+     * @throws java.io.IOException
+     */
+    public void close() throws IOException {
+        reader.close();
+        System.out.println(FilenameUtils.getName(file)+" metadata parsing = "+metaTime/1000000+" ms, pixels reading = "+readTime/1000000+" ms");
+    }
+}
@@ -0,0 +1,219 @@
+package Genes_Tools;
+
+
+import ij.ImageStack;
+import ij.measure.Calibration;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+
+/**
+ * Connected components labelling in one raster pass
+ * Union-find on provisional labels, 26-connectivity
+ * Voxels count per label is accumulated during the scan and
+ * min/max volume filter is applied at the end
+ * Kept labels are stored in scratch storage (heap or mapped)
+ * Slices can also be given one by one (begin, addSlice, end), only the previous slice is kept
+ * @author phm
+ */
+
+public class Labeller3D {
+
+    private final ScratchStorage scratch;
+    private UnionFind uf;
+
+    // incremental labelling : stack size, provisional labels, previous and spare slices
+    private int width, height, depth, nextZ;
+    private boolean inPlace;
+    private IntBuffer[] provLabels;
+    private int[] prev, spare;
+
+
+    public Labeller3D() {
+        this(ScratchStorage.HEAP);
+    }
+
+    public Labeller3D(ScratchStorage scratch) {
+        this.scratch = scratch;
+    }
+
+
+    /**
+     * Foreground of slice, any non zero pixel
+     * @param pixels
+     * @return foreground
+     */
+    private boolean[] foreground(Object pixels) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            boolean[] fg = new boolean[p.length];
+            for (int n = 0; n < p.length; n++)
+                fg[n] = p[n] != 0;
+            return(fg);
+        }
+        if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            boolean[] fg = new boolean[p.length];
+            for (int n = 0; n < p.length; n++)
+                fg[n] = p[n] != 0;
+            return(fg);
+        }
+        float[] p = (float[]) pixels;
+        boolean[] fg = new boolean[p.length];
+        for (int n = 0; n < p.length; n++)
+            fg[n] = p[n] != 0;
+        return(fg);
+    }
+
+
+    /**
+     * Label provisional components of one slice
+     * @param fg foreground of slice
+     * @param cur provisional labels of slice (output)
+     * @param prev provisional labels of previous slice, null for first slice
+     * @param width
+     * @param height
+     */
+    private void scanSlice(boolean[] fg, int[] cur, int[] prev, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (!fg[i]) {
+                    cur[i] = 0;
+                    continue;
+                }
+                int l = 0;
+                // backward neighbours in same slice
+                if (x > 0)
+                    l = merge(l, cur[i - 1]);
+                if (y > 0) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int xx = x + dx;
+                        if (xx >= 0 && xx < width)
+                            l = merge(l, cur[i - width + dx]);
+                    }
+                }
+                // 9 neighbours in previous slice
+                if (prev != null) {
+                    for (int dy = -1; dy <= 1; dy++) {
+                        int yy = y + dy;
+                        if (yy < 0 || yy >= height)
+                            continue;
+                        for (int dx = -1; dx <= 1; dx++) {
+                            int xx = x + dx;
+                            if (xx >= 0 && xx < width)
+                                l = merge(l, prev[yy * width + xx]);
+                        }
+                    }
+                }
+                if (l == 0)
+                    l = uf.newLabel();
+                cur[i] = l;
+                uf.size[l]++;
+            }
+        }
+    }
+
+
+    private int merge(int l, int n) {
+        if (n == 0)
+            return(l);
+        return((l == 0) ? n : uf.union(l, n));
+    }
+
+
+    /**
+     * Label binary stack and filter objects on volume
+     * @param mask binary stack, non zero = foreground
+     * @param cal
+     * @param minVol min object volume (calibrated)
+     * @param maxVol max object volume (calibrated)
+     * @param keepLabels keep labels image for objects population
+     * @return dots population
+     * @throws java.io.IOException
+     */
+    public DotsPopulation label(ImageStack mask, Calibration cal, double minVol, double maxVol, boolean keepLabels) throws IOException {
+        begin(mask.getWidth(), mask.getHeight(), mask.getSize(), keepLabels);
+        for (int z = 0; z < depth; z++)
+            addSlice(foreground(mask.getPixels(z+1)));
+        return(end(cal, minVol, maxVol));
+    }
+
+
+    /**
+     * Start labelling of a stack given slice by slice
+     * @param width
+     * @param height
+     * @param depth
+     * @param keepLabels keep labels image for objects population
+     * @throws java.io.IOException
+     */
+    public void begin(int width, int height, int depth, boolean keepLabels) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        uf = new UnionFind();
+        provLabels = keepLabels ? scratch.intSlices(depth, width*height) : null;
+        // heap labels are scanned in place, otherwise only two slices are kept and mapped labels are copied
+        inPlace = keepLabels && !scratch.isMapped();
+        prev = null;
+        spare = null;
+        nextZ = 0;
+    }
+
+
+    /**
+     * Label next slice, components touching previous slice are carried on
+     * @param fg foreground of slice
+     */
+    public void addSlice(boolean[] fg) {
+        int[] cur = inPlace ? provLabels[nextZ].array() : (spare == null) ? new int[width*height] : spare;
+        scanSlice(fg, cur, prev, width, height);
+        if (provLabels != null && !inPlace)
+            ScratchStorage.put(provLabels[nextZ], cur);
+        if (!inPlace)
+            spare = prev;
+        prev = cur;
+        nextZ++;
+    }
+
+
+    /**
+     * Filter objects on volume once all slices are added
+     * @param cal
+     * @param minVol min object volume (calibrated)
+     * @param maxVol max object volume (calibrated)
+     * @return dots population
+     */
+    public DotsPopulation end(Calibration cal, double minVol, double maxVol) {
+        DotsPopulation pop = resolve(width, height, depth, cal, minVol, maxVol, provLabels);
+        provLabels = null;
+        prev = null;
+        spare = null;
+        return(pop);
+    }
+
+
+    /**
+     * Sum sizes on roots, apply volume filter and relabel objects 1..n
+     */
+    private DotsPopulation resolve(int width, int height, int depth, Calibration cal, double minVol, double maxVol, IntBuffer[] provLabels) {
+        double voxVol = cal.pixelWidth*cal.pixelHeight*cal.pixelDepth;
+        long[] rootSize = uf.rootSizes();
+        int[] finalLabel = uf.filterRoots(rootSize, voxVol, minVol, maxVol);
+        int[] sizes = uf.objectSizes(rootSize, finalLabel);
+        if (provLabels != null) {
+            for (int l = 1; l <= uf.nbLabels; l++)
+                finalLabel[l] = finalLabel[uf.find(l)];
+            int[] values = new int[width*height];
+            for (IntBuffer buf : provLabels) {
+                int[] slice = ScratchStorage.get(buf, values);
+                for (int n = 0; n < slice.length; n++)
+                    slice[n] = finalLabel[slice[n]];
+                if (!buf.hasArray())
+                    ScratchStorage.put(buf, slice);
+            }
+        }
+        return(new DotsPopulation(width, height, depth, cal, sizes, provLabels));
+    }
+}
@@ -0,0 +1,173 @@
+package Genes_Tools;
+
+
+import ij.process.AutoThresholder;
+
+
+/**
+ * 256 bins histogram of the voxels inside roi mask
+ * Filled slice by slice in two passes (range, then values) on roi spans, without masked copy of the stack
+ * Slices can be added concurrently
+ * @author phm
+ */
+
+public class MaskedHistogram {
+
+    public static final int BINS = 256;
+
+    // roi spans, null = all voxels
+    private final int[] spans;
+    private float min = Float.MAX_VALUE;
+    private float max = -Float.MAX_VALUE;
+    private final int[] hist = new int[BINS];
+    // one pass histogram of integer values (8/16-bit DoG)
+    private int[] fineHist = null;
+
+    // voxels counted in histogram
+    public long count = 0;
+    // threshold value
+    public float threshold = 0;
+
+
+    /**
+     * @param roiMask mask (null = whole image)
+     */
+    public MaskedHistogram(RoiMask roiMask) {
+        spans = (roiMask == null) ? null : roiMask.spans;
+    }
+
+
+    public boolean isMasked() {
+        return(spans != null);
+    }
+
+
+    /**
+     * First pass : value range of slice inside mask
+     * @param slice
+     */
+    public void addRange(float[] slice) {
+        addRange(slice, spans);
+    }
+    
+    
+    /**
+     * First pass with slice own spans (tiles)
+     * @param slice
+     * @param sliceSpans pixel index spans, null = all voxels
+     */
+    public void addRange(float[] slice, int[] sliceSpans) {
+        if (sliceSpans == null)
+            sliceSpans = new int[]{0, slice.length};
+        float sliceMin = Float.MAX_VALUE, sliceMax = -Float.MAX_VALUE;
+        int sliceCount = 0;
+        for (int s = 0; s < sliceSpans.length; s += 2) {
+            sliceCount += sliceSpans[s + 1] - sliceSpans[s];
+            for (int n = sliceSpans[s]; n < sliceSpans[s + 1]; n++) {
+                float v = slice[n];
+                if (v < sliceMin) sliceMin = v;
+                if (v > sliceMax) sliceMax = v;
+            }
+        }
+        synchronized (this) {
+            min = Math.min(min, sliceMin);
+            max = Math.max(max, sliceMax);
+            count += sliceCount;
+        }
+    }
+
+
+    /**
+     * Second pass : histogram of slice inside mask
+     * @param slice
+     */
+    public void addValues(float[] slice) {
+        addValues(slice, spans);
+    }
+    
+    
+    /**
+     * Second pass with slice own spans (tiles)
+     * @param slice
+     * @param sliceSpans pixel index spans, null = all voxels
+     */
+    public void addValues(float[] slice, int[] sliceSpans) {
+        if (max <= min)
+            return;
+        if (sliceSpans == null)
+            sliceSpans = new int[]{0, slice.length};
+        float scale = (BINS - 1) / (max - min);
+        int[] sliceHist = new int[BINS];
+        for (int s = 0; s < sliceSpans.length; s += 2)
+            for (int n = sliceSpans[s]; n < sliceSpans[s + 1]; n++)
+                sliceHist[(int) ((slice[n] - min) * scale)]++;
+        synchronized (this) {
+            for (int b = 0; b < BINS; b++)
+                hist[b] += sliceHist[b];
+        }
+    }
+
+
+    /**
+     * One pass for integer values in [0, 65535] : range and exact values histogram,
+     * rebinned to 256 bins when threshold is computed
+     * @param slice
+     */
+    public void addIntegerValues(float[] slice) {
+        addIntegerValues(slice, spans);
+    }
+    
+    
+    /**
+     * One pass with slice own spans (tiles)
+     * @param slice
+     * @param sliceSpans pixel index spans, null = all voxels
+     */
+    public void addIntegerValues(float[] slice, int[] sliceSpans) {
+        if (sliceSpans == null)
+            sliceSpans = new int[]{0, slice.length};
+        int[] sliceHist = new int[65536];
+        float sliceMin = Float.MAX_VALUE, sliceMax = -Float.MAX_VALUE;
+        int sliceCount = 0;
+        for (int s = 0; s < sliceSpans.length; s += 2) {
+            sliceCount += sliceSpans[s + 1] - sliceSpans[s];
+            for (int n = sliceSpans[s]; n < sliceSpans[s + 1]; n++) {
+                float v = slice[n];
+                sliceHist[(int) v]++;
+                if (v < sliceMin) sliceMin = v;
+                if (v > sliceMax) sliceMax = v;
+            }
+        }
+        synchronized (this) {
+            if (fineHist == null)
+                fineHist = new int[65536];
+            for (int b = (int) Math.max(0, sliceMin); b <= (int) sliceMax; b++)
+                fineHist[b] += sliceHist[b];
+            min = Math.min(min, sliceMin);
+            max = Math.max(max, sliceMax);
+            count += sliceCount;
+        }
+    }
+    
+    
+    /**
+     * Automatic threshold on histogram
+     * @param thMethod
+     * @return threshold value
+     */
+    public float computeThreshold(String thMethod) {
+        // flat image, no dots
+        if (max <= min)
+            threshold = Float.MAX_VALUE;
+        else {
+            if (fineHist != null) {
+                float scale = (BINS - 1) / (max - min);
+                for (int v = (int) min; v <= (int) max; v++)
+                    hist[(int) ((v - min) * scale)] += fineHist[v];
+            }
+            int index = new AutoThresholder().getThreshold(AutoThresholder.Method.valueOf(thMethod), hist);
+            threshold = min + index * (max - min) / (BINS - 1);
+        }
+        return(threshold);
+    }
+}
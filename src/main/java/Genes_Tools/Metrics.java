@@ -0,0 +1,250 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Per roi and per stage metrics : wall time, voxels, bytes read/written, bytes moved host <-> device
+ * and heap used at the end of the stage (peak is the max of these samples)
+ * Stages record on the roi bound to the current thread (see bind), stages run without a bound roi are ignored
+ * Written to metrics.tsv (one row per stage call) and metrics_summary.tsv (percentiles per stage)
+ * GPU stages time the CLIJ2 calls, which wait for their kernels
+ * @author phm
+ */
+
+public class Metrics {
+
+    /**
+     * One stage call
+     */
+    public static class Record {
+        public final int roiIndex;
+        public final String image, roi, context, stage;
+        public final double ms;
+        public final long voxels, bytes, toDevice, fromDevice, heap;
+
+        Record(int roiIndex, String image, String roi, String context, String stage, double ms,
+                long voxels, long bytes, long toDevice, long fromDevice, long heap) {
+            this.roiIndex = roiIndex;
+            this.image = image;
+            this.roi = roi;
+            this.context = context;
+            this.stage = stage;
+            this.ms = ms;
+            this.voxels = voxels;
+            this.bytes = bytes;
+            this.toDevice = toDevice;
+            this.fromDevice = fromDevice;
+            this.heap = heap;
+        }
+    }
+
+
+    /**
+     * Roi and context (gene) of current thread
+     */
+    private static class Binding {
+        final Metrics metrics;
+        final RoiTask task;
+        final String context;
+
+        Binding(Metrics metrics, RoiTask task, String context) {
+            this.metrics = metrics;
+            this.task = task;
+            this.context = context;
+        }
+    }
+
+    private static final ThreadLocal<Binding> current = new ThreadLocal<>();
+
+    private final List<Record> records = new ArrayList<>();
+    private long peakHeap = 0;
+    // run counters (backend buffers reuse ...), written with the summary
+    private final Map<String, Long> counters = new LinkedHashMap<>();
+
+
+    /**
+     * Bind roi to current thread, following stages are recorded on it
+     * @param task
+     * @param context gene or empty
+     */
+    public void bind(RoiTask task, String context) {
+        current.set(new Binding(this, task, context));
+    }
+
+
+    /**
+     * Change context of roi bound to current thread
+     * @param context gene or empty
+     */
+    public static void context(String context) {
+        Binding b = current.get();
+        if (b != null)
+            current.set(new Binding(b.metrics, b.task, context));
+    }
+
+
+    /**
+     * Unbind roi of current thread
+     */
+    public static void unbind() {
+        current.remove();
+    }
+
+
+    /**
+     * Stage start time
+     * @return ns
+     */
+    public static long start() {
+        return(System.nanoTime());
+    }
+
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return(rt.totalMemory() - rt.freeMemory());
+    }
+
+
+    /**
+     * Record stage on roi of current thread
+     * @param stage
+     * @param t0 start time
+     * @param voxels voxels processed
+     * @param bytes bytes read or written on host
+     * @param toDevice bytes pushed to device
+     * @param fromDevice bytes pulled from device
+     */
+    public static void stop(String stage, long t0, long voxels, long bytes, long toDevice, long fromDevice) {
+        Binding b = current.get();
+        if (b == null)
+            return;
+        double ms = (System.nanoTime() - t0) / 1e6;
+        long heap = usedHeap();
+        String roi = (b.task.roi == null) ? "" : b.task.roi.getName();
+        Record r = new Record(b.task.index, b.task.rootName, roi, b.context, stage, ms, voxels, bytes, toDevice, fromDevice, heap);
+        synchronized (b.metrics) {
+            b.metrics.records.add(r);
+            b.metrics.peakHeap = Math.max(b.metrics.peakHeap, heap);
+        }
+    }
+
+
+    /**
+     * Record host stage
+     */
+    public static void stop(String stage, long t0, long voxels, long bytes) {
+        stop(stage, t0, voxels, bytes, 0, 0);
+    }
+
+
+    /**
+     * Voxels of image
+     * @param img
+     * @return voxels
+     */
+    public static long voxels(ImagePlus img) {
+        return((long) img.getWidth() * img.getHeight() * img.getStackSize());
+    }
+
+
+    /**
+     * Pixels bytes of image
+     * @param img
+     * @return bytes
+     */
+    public static long bytes(ImagePlus img) {
+        return(voxels(img) * img.getBytesPerPixel());
+    }
+
+
+    /**
+     * Add run counters
+     * @param values counters by name
+     */
+    public synchronized void counters(Map<String, Long> values) {
+        counters.putAll(values);
+    }
+
+
+    /**
+     * Percentile of sorted values, nearest rank
+     */
+    private static double percentile(double[] sorted, double p) {
+        int rank = (int) Math.ceil(p / 100 * sorted.length);
+        return(sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))]);
+    }
+
+
+    /**
+     * Write metrics.tsv, metrics_summary.tsv and metrics_counters.tsv if any counter
+     * @param prefix path without extension (Results/metrics)
+     * @throws java.io.IOException
+     */
+    public synchronized void write(String prefix) throws IOException {
+        List<Record> sorted = new ArrayList<>(records);
+        sorted.sort(Comparator.comparingInt((Record r) -> r.roiIndex));
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(prefix+".tsv"))) {
+            out.write("roi index\timage\troi\tcontext\tstage\twall ms\tvoxels\tbytes\tto device bytes\tfrom device bytes\theap MB\n");
+            for (Record r : sorted)
+                out.write(r.roiIndex+"\t"+r.image+"\t"+r.roi+"\t"+r.context+"\t"+r.stage+"\t"+String.format(Locale.US, "%.3f", r.ms)+"\t"+r.voxels
+                        +"\t"+r.bytes+"\t"+r.toDevice+"\t"+r.fromDevice+"\t"+(r.heap >> 20)+"\n");
+        }
+
+        // wall time of stages summed per roi, percentiles across rois
+        Map<String, Map<Integer, double[]>> perStage = new LinkedHashMap<>();
+        for (Record r : sorted) {
+            double[] v = perStage.computeIfAbsent(r.stage, s -> new LinkedHashMap<>()).computeIfAbsent(r.roiIndex, i -> new double[6]);
+            v[0] += r.ms;
+            v[1] += r.voxels;
+            v[2] += r.bytes;
+            v[3] += r.toDevice;
+            v[4] += r.fromDevice;
+            v[5] = Math.max(v[5], r.heap);
+        }
+        StringBuilder console = new StringBuilder("Stage\tp50 ms\tp90 ms\tmax ms\ttotal s\n");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(prefix+"_summary.tsv"))) {
+            out.write("stage\trois\tp50 ms\tp90 ms\tp99 ms\tmax ms\ttotal ms\tvoxels/s\ttotal bytes\ttotal to device bytes\ttotal from device bytes\tmax heap MB\n");
+            for (Map.Entry<String, Map<Integer, double[]>> e : perStage.entrySet()) {
+                double[] ms = new double[e.getValue().size()];
+                double total = 0, voxels = 0, bytes = 0, toDevice = 0, fromDevice = 0, heap = 0;
+                int i = 0;
+                for (double[] v : e.getValue().values()) {
+                    ms[i++] = v[0];
+                    total += v[0];
+                    voxels += v[1];
+                    bytes += v[2];
+                    toDevice += v[3];
+                    fromDevice += v[4];
+                    heap = Math.max(heap, v[5]);
+                }
+                Arrays.sort(ms);
+                double rate = (total == 0) ? 0 : voxels / (total / 1000);
+                out.write(e.getKey()+"\t"+ms.length+"\t"+String.format(Locale.US, "%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.0f\t%.0f\t%.0f\t%.0f\t%d",
+                        percentile(ms, 50), percentile(ms, 90), percentile(ms, 99), ms[ms.length - 1], total, rate, bytes, toDevice, fromDevice, ((long) heap) >> 20)+"\n");
+                console.append(String.format(Locale.US, "%s\t%.1f\t%.1f\t%.1f\t%.1f\n", e.getKey(), percentile(ms, 50), percentile(ms, 90), ms[ms.length - 1], total / 1000));
+            }
+        }
+        System.out.print(console);
+        System.out.println("Peak heap = "+(peakHeap >> 20)+" MB");
+        if (!counters.isEmpty()) {
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(prefix+"_counters.tsv"))) {
+                out.write("counter\tvalue\n");
+                for (Map.Entry<String, Long> e : counters.entrySet())
+                    out.write(e.getKey()+"\t"+e.getValue()+"\n");
+            }
+        }
+    }
+}
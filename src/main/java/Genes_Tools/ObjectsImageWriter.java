@@ -0,0 +1,133 @@
+package Genes_Tools;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+import loci.formats.services.OMEXMLService;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+
+/**
+ * Objects image writer
+ * Genes objects are written as 8-bit masks (255 = object), one channel per gene,
+ * plane by plane from the labels of the dots populations, in ImageJ hyperstack order (czt)
+ * Planes are written sequentially by the Bio-Formats TIFF writer, only one plane is in memory,
+ * BigTIFF is used when the image may not fit in 4 GB, a partial file is deleted on failure
+ * @author phm
+ */
+
+public class ObjectsImageWriter {
+
+    public static final String[] COMPRESSIONS = {"LZW", "Deflate", "None"};
+
+    // IFD and description bytes per plane, above this size offsets need BigTIFF
+    private static final long IFD_BYTES = 1024;
+    private static final long MAX_TIFF_BYTES = 0xffffffffL;
+
+    private final String compression;
+
+
+    /**
+     * @param compression LZW, Deflate or None
+     */
+    public ObjectsImageWriter(String compression) {
+        this.compression = compression;
+    }
+
+
+    private String tiffCompression() {
+        switch (compression) {
+            case "LZW" :
+                return(TiffWriter.COMPRESSION_LZW);
+            case "Deflate" :
+                return(TiffWriter.COMPRESSION_ZLIB);
+            default :
+                return(TiffWriter.COMPRESSION_UNCOMPRESSED);
+        }
+    }
+
+
+    /**
+     * Write objects of populations, populations without objects after the first one are skipped
+     * @param pops genes populations, labels must be kept
+     * @param path
+     * @throws java.io.IOException
+     */
+    public void write(DotsPopulation[] pops, String path) throws IOException {
+        DotsPopulation first = pops[0];
+        int width = first.width, height = first.height, depth = first.depth;
+        int nChannels = 1;
+        for (int i = 1; i < pops.length; i++)
+            if (pops[i].getNbObjects() > 0)
+                nChannels = i + 1;
+        for (int c = 0; c < nChannels; c++)
+            if (pops[c].labels == null && pops[c].getNbObjects() > 0)
+                throw new IllegalStateException("Labels were not kept");
+        int nImages = nChannels * depth;
+        // masks planes do not grow when compressed, uncompressed size decides BigTIFF before anything is written
+        long estimated = 8 + nImages * ((long) width * height + IFD_BYTES);
+        byte[] plane = new byte[width * height];
+        int[] values = new int[width * height];
+        File file = new File(path);
+        file.delete();
+        TiffWriter writer = new TiffWriter();
+        boolean done = false;
+        try {
+            writer.setMetadataRetrieve(metadata(width, height, depth, nChannels, first));
+            writer.setCompression(tiffCompression());
+            writer.setBigTiff(estimated > MAX_TIFF_BYTES);
+            writer.setWriteSequentially(true);
+            writer.setId(path);
+            int image = 0;
+            for (int z = 0; z < depth; z++)
+                for (int c = 0; c < nChannels; c++) {
+                    int[] lab = (pops[c].labels == null) ? null : ScratchStorage.get(pops[c].labels[z], values);
+                    Arrays.fill(plane, (byte) 0);
+                    if (lab != null)
+                        for (int n = 0; n < plane.length; n++)
+                            if (lab[n] > 0)
+                                plane[n] = (byte) 255;
+                    writer.saveBytes(image++, plane);
+                }
+            writer.close();
+            done = true;
+        } catch (FormatException | DependencyException | ServiceException ex) {
+            throw new IOException("Objects image "+path+" not written", ex);
+        } finally {
+            if (!done) {
+                try {
+                    writer.close();
+                } catch (IOException ex) {
+                    // file is deleted anyway
+                }
+                file.delete();
+            }
+        }
+    }
+
+
+    /**
+     * OME metadata of 8-bit hyperstack, XYCZT order is ImageJ czt order
+     */
+    private IMetadata metadata(int width, int height, int depth, int nChannels, DotsPopulation pop) throws DependencyException, ServiceException {
+        ServiceFactory factory = new ServiceFactory();
+        OMEXMLService service = factory.getInstance(OMEXMLService.class);
+        IMetadata meta = service.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(meta, 0, null, false, "XYCZT", FormatTools.getPixelTypeString(FormatTools.UINT8),
+                width, height, depth, nChannels, 1, 1);
+        meta.setPixelsPhysicalSizeX(new Length(pop.cal.pixelWidth, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeY(new Length(pop.cal.pixelHeight, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeZ(new Length(pop.cal.pixelDepth, UNITS.MICROMETER), 0);
+        return(meta);
+    }
+}
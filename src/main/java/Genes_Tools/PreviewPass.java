@@ -0,0 +1,184 @@
+package Genes_Tools;
+
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.plugin.RoiScaler;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.List;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Preview pass : fast approximate results of all rois on images reduced in XY
+ * Planes are read at the deepest pyramid level whose downsampling factor divides the binning factor,
+ * then binned in XY on load up to the binning factor (images without pyramid are binned from full resolution).
+ * Rois are scaled by 1 / binning, XY calibration is multiplied and DoG XY sigmas are divided by binning,
+ * Z planes and Z sigmas are kept : dots are about one pixel wide after binning and Z smoothing is what
+ * keeps close dots apart. Foci volume limits (µm3) apply through the reduced calibration.
+ * @author phm
+ */
+
+public class PreviewPass {
+
+    private final RNA_Scope_Nerve_Processing genes;
+    private final int[] chIndex;
+    // XY binning factor
+    public final int binning;
+
+
+    public PreviewPass(RNA_Scope_Nerve_Processing genes, int[] chIndex) {
+        this.genes = genes;
+        this.chIndex = chIndex;
+        this.binning = Math.max(1, genes.previewBinning);
+    }
+
+
+    /**
+     * Deepest pyramid level whose downsampling factor divides binning
+     * @param reader reader with resolutions not flattened, left at full resolution
+     * @param binning
+     * @return level and its downsampling factor
+     */
+    public static int[] pyramidLevel(ImageProcessorReader reader, int binning) {
+        reader.setResolution(0);
+        int sizeX = reader.getSizeX();
+        int[] level = {0, 1};
+        for (int r = 1; r < reader.getResolutionCount(); r++) {
+            reader.setResolution(r);
+            int factor = (int) Math.round((double) sizeX / reader.getSizeX());
+            if (factor > level[1] && binning % factor == 0) {
+                level[0] = r;
+                level[1] = factor;
+            }
+        }
+        reader.setResolution(0);
+        return(level);
+    }
+
+
+    /**
+     * Read genes channels of reduced crop
+     * @param reader
+     * @param rect crop in reduced image
+     * @param level pyramid level and factor
+     * @param cal reduced calibration
+     * @return genes images (null if channel index = -1)
+     */
+    private ImagePlus[] openReduced(ImageProcessorReader reader, Rectangle rect, int[] level, Calibration cal) throws FormatException, IOException {
+        int bin = binning / level[1];
+        int sizeZ = reader.getSizeZ();
+        reader.setResolution(level[0]);
+        long bytes = 0;
+        long bytesPlane = (long) rect.width * bin * rect.height * bin * FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
+        ImagePlus[] imgs = new ImagePlus[chIndex.length];
+        try {
+            for (int c = 0; c < chIndex.length; c++) {
+                if (chIndex[c] < 0)
+                    continue;
+                ImageStack stack = new ImageStack(rect.width, rect.height);
+                for (int z = 0; z < sizeZ; z++) {
+                    ImageProcessor ip = reader.openProcessors(reader.getIndex(z, chIndex[c], 0), rect.x * bin, rect.y * bin, rect.width * bin, rect.height * bin)[0];
+                    stack.addSlice((bin == 1) ? ip : ip.bin(bin));
+                    bytes += bytesPlane;
+                }
+                imgs[c] = new ImagePlus("preview_C"+chIndex[c], stack);
+                imgs[c].setDimensions(1, sizeZ, 1);
+                imgs[c].setCalibration(cal);
+            }
+        } finally {
+            reader.setResolution(0);
+        }
+        genes.bytesDecoded.addAndGet(bytes);
+        return(imgs);
+    }
+
+
+    /**
+     * Detect genes of all rois on reduced images and write preview table
+     * @param tasks rois tasks in sequential order
+     * @param path preview table
+     * @throws java.io.IOException
+     * @throws loci.formats.FormatException
+     */
+    public void run(List<RoiTask> tasks, String path) throws IOException, FormatException {
+        long t0 = System.currentTimeMillis();
+        Calibration fullCal = genes.cal;
+        double minDOGDots = genes.minDOGDots, maxDOGDots = genes.maxDOGDots;
+        Calibration cal = fullCal.copy();
+        cal.pixelWidth *= binning;
+        cal.pixelHeight *= binning;
+        boolean coloc = genes.colocalised(chIndex.length);
+        ResultsSink results = new ResultsSink(path, RNA_Scope_Nerve_Processing.resultsColumns(chIndex.length, coloc),
+                RNA_Scope_Nerve_Processing.resultsTypes(chIndex.length, coloc), genes.paramsKey(chIndex)+",preview "+binning, false, false);
+        ImageSession session = null;
+        genes.cal = cal;
+        genes.minDOGDots = minDOGDots / binning;
+        genes.maxDOGDots = maxDOGDots / binning;
+        try {
+            int[] level = {0, 1};
+            for (RoiTask task : tasks) {
+                if (session == null || !session.file.equals(task.imageFile)) {
+                    if (session != null)
+                        session.close();
+                    session = new ImageSession(task.imageFile, false);
+                    level = pyramidLevel(session.reader, binning);
+                    System.out.println("Preview of "+task.rootName+" : pyramid level "+level[0]+" (x"+level[1]+"), binning "+(binning / level[1]));
+                }
+                ImageProcessorReader reader = session.reader;
+                Roi roi = (task.roi == null) ? genes.wholeImageRoi(reader.getSizeX(), reader.getSizeY()) : task.roi;
+                task.roiName = roi.getName();
+                task.sizeZ = reader.getSizeZ();
+                // reduced roi inside reduced image
+                Roi reduced = RoiScaler.scale(roi, 1.0 / binning, 1.0 / binning, false);
+                Rectangle bounds = reduced.getBounds();
+                Rectangle rect = bounds.intersection(new Rectangle(reader.getSizeX() / binning, reader.getSizeY() / binning));
+                if (rect.isEmpty()) {
+                    System.out.println("Roi "+task.roiName+" too small for preview");
+                    continue;
+                }
+                RoiMask mask = new RoiMask(reduced, bounds.width, bounds.height);
+                if (!rect.equals(bounds))
+                    mask = mask.crop(new Rectangle(rect.x - bounds.x, rect.y - bounds.y, rect.width, rect.height));
+                task.roiVol = genes.roiVolume(mask, task.sizeZ);
+                IJ.showStatus("Preview "+task.rootName+" roi "+task.roiName+" ...");
+                DotsPopulation[] pops = genes.findGenesPops(openReduced(reader, rect, level, cal), mask, coloc, true);
+                int n = chIndex.length;
+                task.genesVol = new double[n];
+                task.thresholds = new double[n];
+                task.thresholdVoxels = new long[n];
+                for (int g = 0; g < n; g++) {
+                    if (pops[g] == null)
+                        continue;
+                    task.genesVol[g] = pops[g].getVolume();
+                    task.thresholds[g] = pops[g].threshold;
+                    task.thresholdVoxels[g] = pops[g].thresholdVoxels;
+                    System.out.println(task.rootName+" "+task.roiName+" gene"+(g+1)+" preview found = "+pops[g].getNbObjects());
+                }
+                if (coloc)
+                    task.coloc = genes.colocalise(pops);
+                results.add(genes.resultsRow(task));
+            }
+        } catch (DependencyException | ServiceException ex) {
+            throw new IOException(ex);
+        } finally {
+            genes.cal = fullCal;
+            genes.minDOGDots = minDOGDots;
+            genes.maxDOGDots = maxDOGDots;
+            if (session != null)
+                session.close();
+            results.close();
+            genes.backend().close();
+        }
+        System.out.println("Preview of "+tasks.size()+" rois in "+(System.currentTimeMillis() - t0)+" ms, written to "+path);
+    }
+}
@@ -6,37 +6,35 @@ package Genes_Tools;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.PolygonRoi;
+import ij.ImageStack;
 import ij.gui.Roi;
 import ij.gui.WaitForUserDialog;
-import ij.io.FileSaver;
+import ij.io.RoiDecoder;
 import ij.measure.Calibration;
-import ij.measure.Measurements;
-import ij.plugin.RGBStackMerge;
 import ij.process.AutoThresholder;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.meta.IMetadata;
 import loci.plugins.util.ImageProcessorReader;
-import mcib3d.geom2.Object3DInt;
-import mcib3d.geom2.Objects3DIntPopulation;
-import mcib3d.geom2.measurements.MeasureVolume;
-import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.ImageInt;
-import mcib3d.image3d.ImageLabeller;
 import org.apache.commons.io.FilenameUtils;
-import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
-import net.haesleinhuepf.clij2.CLIJ2;
 
 
 
@@ -47,19 +45,61 @@ import net.haesleinhuepf.clij2.CLIJ2;
 
 public class RNA_Scope_Nerve_Processing {
     
-    public CLIJ2 clij2 = CLIJ2.getInstance();
+    // CLIJ2 or CPU detection, picked when processing starts (see backend())
+    public DetectionBackend backend = null;
     
     // min size for dots
     public double minFoci = 0.05;
     public double maxFoci = 10;
-    public double singleDotVol = 0.06;
+    public double singleDotVol = SINGLE_DOT_VOL;
+    // single foci volume default, also used by headless recount without processing instance
+    public static final double SINGLE_DOT_VOL = 0.06;
 
-    private double minDOGDots = 1;
-    private double maxDOGDots = 2;
-    private String geneThreshold = "MaxEntropy";
-    public final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
+    // DoG sigmas in pixels, XY and Z
+    double minDOGDots = 1;
+    double maxDOGDots = 2;
+    double minDOGDotsZ = 1;
+    double maxDOGDotsZ = 2;
+    String geneThreshold = "MaxEntropy";
+    // threshold histogram only inside roi
+    public boolean maskedThreshold = false;
+    // gene1 dots overlapping gene2 dots or with centroid within colocDistance (µm) of a gene2 dot centroid
+    public boolean colocalisation = false;
+    public double colocDistance = 0.5;
+    // tiled detection : Auto (crop larger than available memory), Always, Never
+    public String tiling = "Auto";
+    private final String[] tilingModes = {"Auto", "Always", "Never"};
+    // Z-slab streaming : Never, Always, Auto (stacks deeper than 4 slabs with halos), planes per slab
+    public String zStreaming = "Never";
+    private final String[] streamingModes = {"Never", "Always", "Auto"};
+    public int slabPlanes = 8;
+    // preview : fast approximate pass on images binned in XY by previewBinning, written to preview.xls
+    public boolean preview = false;
+    public int previewBinning = 4;
+    // objects images : All, Sample (one roi every objectsSample), None
+    public String objectsImages = "All";
+    private final String[] objectsModes = {"All", "Sample", "None"};
+    public int objectsSample = 10;
+    public String objectsCompression = "LZW";
+    // reuse results of unchanged rois from Results/cache.tsv
+    public boolean useCache = true;
+    // keep results rows of an interrupted run, write columnar results (.col) too
+    public boolean resume = false;
+    public boolean columnarResults = false;
+    // labels kept for objects images : Heap or Mapped on scratch files in scratchDir (empty = java.io.tmpdir)
+    public String scratch = "Heap";
+    public String scratchDir = "";
     public Calibration cal = new Calibration();    
     public float pixVol = 0;
+    // bytes decoded by openGenesChannels
+    public AtomicLong bytesDecoded = new AtomicLong();
+    // batch workers and memory budget for roi crops in flight (GB, 0 = half of max heap)
+    public int workers = 1;
+    public double memoryBudget = 0;
+    // image giving channels and calibration, other images are checked against it (null = first image)
+    public String referenceImage = null;
+    // start rois with the most voxels first
+    public boolean longestFirst = true;
     
      /**
      * check  installed modules
@@ -74,12 +114,6 @@ public class RNA_Scope_Nerve_Processing {
             IJ.log("CLIJ not installed, please install from update site");
             return false;
         }
-        try {
-            loader.loadClass("mcib3d.geom.Object3D");
-        } catch (ClassNotFoundException e) {
-            IJ.log("3D ImageJ Suite not installed, please install from update site");
-            return false;
-        }
         return true;
     }
 
@@ -106,26 +140,328 @@ public class RNA_Scope_Nerve_Processing {
     }
     
     
+    /**
+     * Find rois of image in roi file (.zip or .roi) without RoiManager
+     * @param imageDir
+     * @param rootName
+     * @return rois, null if no roi file
+     * @throws java.io.IOException
+     */
+    public ArrayList<Roi> findRois(String imageDir, String rootName) throws IOException {
+        File roiFile = new File(imageDir, rootName+".zip");
+        if (!roiFile.exists())
+            roiFile = new File(imageDir, rootName+".roi");
+        if (!roiFile.exists())
+            return(null);
+        ArrayList<Roi> rois = new ArrayList<>();
+        if (roiFile.getName().endsWith(".roi")) {
+            Roi roi = new RoiDecoder(roiFile.getPath()).getRoi();
+            if (roi != null)
+                rois.add(roi);
+            return(rois);
+        }
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(roiFile))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (!name.endsWith(".roi"))
+                    continue;
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) > 0)
+                    bytes.write(buf, 0, len);
+                Roi roi = new RoiDecoder(bytes.toByteArray(), name.substring(0, name.length() - 4)).getRoi();
+                if (roi != null)
+                    rois.add(roi);
+            }
+        }
+        return(rois);
+    }
+    
+    
+    /**
+     * Whole image roi, named as RoiManager does
+     * @param width
+     * @param height
+     * @return roi
+     */
+    public Roi wholeImageRoi(int width, int height) {
+        Roi roi = new Roi(0, 0, width, height);
+        roi.setName(String.format("%04d-%04d", 0, height / 2));
+        return(roi);
+    }
+    
+    
+    // genes channels in dialog
+    public static final int MAX_GENES = 4;
+    
+    
+    /**
+     * Results columns : per gene volume, ratio and dots number, pairwise ratios, per gene threshold
+     * (same columns as the gene1/gene2 table for 2 genes)
+     * @param nGenes
+     * @return columns
+     */
+    public static String[] resultsColumns(int nGenes) {
+        return(resultsColumns(nGenes, false));
+    }
+    
+    
+    /**
+     * Results columns, gene1/gene2 colocalisation counts at the end
+     * @param nGenes
+     * @param coloc
+     * @return columns
+     */
+    public static String[] resultsColumns(int nGenes, boolean coloc) {
+        List<String> cols = new ArrayList<>(Arrays.asList("ImageName", "ROI name", "ROI Volume"));
+        for (int g = 1; g <= nGenes; g++) {
+            cols.add("Gene"+g+((g == 1) ? " Volume" : " volume"));
+            cols.add("Gene"+g+" ratio volume %");
+            cols.add("Estimated gene"+g+" dots number");
+        }
+        for (int i = 1; i <= nGenes; i++)
+            for (int j = i + 1; j <= nGenes; j++) {
+                cols.add("Ratio Gene"+i+"/Gene"+j+" Nb %");
+                cols.add("Ratio Gene"+i+"/Gene"+j+" Volume %");
+            }
+        for (int g = 1; g <= nGenes; g++) {
+            cols.add("Gene"+g+" threshold");
+            cols.add("Gene"+g+" threshold voxels");
+        }
+        if (coloc) {
+            cols.add("Gene1 dots overlapping Gene2");
+            cols.add("Gene1 dots within distance of Gene2");
+        }
+        return(cols.toArray(new String[0]));
+    }
+    
+    
+    /**
+     * Results columns types
+     * @param nGenes
+     * @return types
+     */
+    public static Class<?>[] resultsTypes(int nGenes) {
+        return(resultsTypes(nGenes, false));
+    }
+    
+    
+    /**
+     * Results columns types
+     * @param nGenes
+     * @param coloc
+     * @return types
+     */
+    public static Class<?>[] resultsTypes(int nGenes, boolean coloc) {
+        String[] cols = resultsColumns(nGenes, coloc);
+        Class<?>[] types = new Class<?>[cols.length];
+        for (int c = 0; c < cols.length; c++)
+            types[c] = (c < 2) ? String.class : cols[c].endsWith("voxels") ? Long.class : Double.class;
+        return(types);
+    }
+    
+    
+    /**
+     * Genes channels index from dialog slots, trailing None slots after gene2 are dropped
+     * @param slots channel index per slot, -1 = None
+     * @return channels index
+     */
+    public static int[] genesChannels(int[] slots) {
+        int n = 2;
+        for (int g = 0; g < slots.length; g++)
+            if (slots[g] >= 0)
+                n = Math.max(n, g + 1);
+        return(Arrays.copyOf(slots, n));
+    }
+    
+    
+    /**
+     * Results row of roi, columns as in resultsColumns
+     * @param task detected roi
+     * @return row
+     */
+    public Object[] resultsRow(RoiTask task) {
+        int nGenes = task.genesVol.length;
+        double[] genesVol = task.genesVol;
+        double[] estimatedNb = new double[nGenes];
+        for (int g = 0; g < nGenes; g++)
+            estimatedNb[g] = (int) Math.round(genesVol[g]/singleDotVol);
+        double roiVol = task.roiVol;
+        List<Object> row = new ArrayList<>(Arrays.asList(task.rootName, task.roiName, roiVol));
+        for (int g = 0; g < nGenes; g++)
+            row.addAll(Arrays.asList(genesVol[g], (genesVol[g]/roiVol)*100, estimatedNb[g]));
+        for (int i = 0; i < nGenes; i++)
+            for (int j = i + 1; j < nGenes; j++) {
+                double ratioNb = (estimatedNb[j] == 0) ?  0 : estimatedNb[i]/estimatedNb[j];
+                double ratioVol = (genesVol[j] == 0) ? 0 : genesVol[i]/genesVol[j];
+                row.add(ratioNb*100);
+                row.add(ratioVol*100);
+            }
+        for (int g = 0; g < nGenes; g++) {
+            row.add(task.thresholds[g]);
+            row.add(task.thresholdVoxels[g]);
+        }
+        if (colocalised(nGenes)) {
+            // not computed for tiled rois
+            row.add((task.coloc == null) ? Double.NaN : (double) task.coloc.overlapping);
+            row.add((task.coloc == null) ? Double.NaN : (double) task.coloc.near);
+        }
+        return(row.toArray());
+    }
+    
+    
+    /**
+     * Detection parameters key : genes channels, dots volume filter, DoG sigmas, threshold method, calibration and backend
+     * @param chIndex
+     * @return key
+     */
+    public String paramsKey(int[] chIndex) {
+        StringBuilder sb = new StringBuilder();
+        for (int c : chIndex)
+            sb.append(c).append(',');
+        sb.append(minFoci).append(',').append(maxFoci).append(',')
+                .append(minDOGDots).append(',').append(maxDOGDots).append(',')
+                .append(minDOGDotsZ).append(',').append(maxDOGDotsZ).append(',')
+                .append(geneThreshold).append(',').append(maskedThreshold).append(',')
+                .append(cal.pixelWidth).append(',').append(cal.pixelHeight).append(',').append(cal.pixelDepth).append(',')
+                .append(backend().getName());
+        if (colocalised(chIndex.length))
+            sb.append(",coloc ").append(colocDistance);
+        return(sb.toString());
+    }
+    
+    
+    /**
+     * Gene1/Gene2 colocalisation is measured
+     * @param nGenes
+     * @return true if enabled and at least 2 genes
+     */
+    public boolean colocalised(int nGenes) {
+        return(colocalisation && nGenes >= 2);
+    }
+    
+    
+    /**
+     * Gene1/Gene2 colocalisation of roi
+     * @param genesPop genes populations, labels kept
+     * @return colocalisation, null if labels were not kept
+     */
+    public Colocalisation colocalise(DotsPopulation[] genesPop) {
+        IJ.showStatus("Colocalisation ...");
+        return(Colocalisation.of(genesPop[0], genesPop[1], colocDistance));
+    }
+    
+    
+    /**
+     * Detection backend, CLIJ2 or CPU is selected on first use
+     * @return backend
+     */
+    public synchronized DetectionBackend backend() {
+        if (backend == null)
+            backend = DetectionBackend.select();
+        return(backend);
+    }
+    
+    
+    /**
+     * Process rois of images and write results
+     * In preview mode only the approximate preview table is written
+     * @param imageDir
+     * @param outDirResults
+     * @param imageFiles
+     * @param chIndex genes channels index
+     * @param suffix results and cache files name suffix (shards)
+     * @throws java.io.IOException
+     * @throws loci.formats.FormatException
+     */
+    public void processImages(String imageDir, String outDirResults, List<String> imageFiles, int[] chIndex, String suffix) throws IOException, FormatException {
+        backend();
+        // metadata of all images, rejected images are skipped
+        ImageScan scan = new ImageScan(this);
+        if (useCache)
+            scan.useMetadataCache(outDirResults, "scan"+suffix+".tsv");
+        scan.scan(imageDir, imageFiles, referenceImage);
+        scan.writeManifest(outDirResults + "manifest"+suffix+".tsv", chIndex);
+        ArrayList<RoiTask> tasks = scan.tasks(chIndex);
+        if (preview) {
+            new PreviewPass(this, chIndex).run(tasks, outDirResults + "preview"+suffix+".xls");
+            return;
+        }
+        // results file, committed rows of an interrupted run with same parameters are kept
+        boolean coloc = colocalised(chIndex.length);
+        ResultsSink results = new ResultsSink(outDirResults + "results"+suffix+".xls", resultsColumns(chIndex.length, coloc), resultsTypes(chIndex.length, coloc),
+                paramsKey(chIndex)+","+singleDotVol, resume, columnarResults);
+        // objects volume histograms, dots numbers can be recomputed from them
+        ResultsSink histograms = new ResultsSink(outDirResults + "histograms"+suffix+".tsv", DotCounts.columns(chIndex.length), DotCounts.types(chIndex.length),
+                paramsKey(chIndex), resume, false);
+        
+        // Process rois
+        BatchEngine engine = new BatchEngine(this, chIndex, outDirResults, results);
+        engine.histograms = histograms;
+        engine.workers = workers;
+        engine.memoryBudget = (long) (memoryBudget * 1024 * 1024 * 1024);
+        engine.longestFirst = longestFirst;
+        if (useCache)
+            engine.cache = new ResultsCache(outDirResults, "cache"+suffix+".tsv", this, chIndex);
+        engine.metricsPrefix = outDirResults + "metrics"+suffix;
+        try {
+            engine.run(tasks);
+        } finally {
+            // rows done before a failure are kept for resume
+            results.close();
+            histograms.close();
+        }
+        DotCounts.write(Arrays.asList(new File(outDirResults + "histograms"+suffix+".tsv")), singleDotVol, outDirResults + "dots_counts"+suffix+".xls");
+        System.out.println("Total bytes decoded = "+bytesDecoded);
+    }
+    
+    
     /**
      * Dialog
      */
     public String[] dialog(String[] channels) {
-        String[] channelsName = {"Gene1 : ", "Gene2 : "};
+        String[] channelsName = new String[MAX_GENES];
+        for (int g = 0; g < MAX_GENES; g++)
+            channelsName[g] = "Gene"+(g+1)+" : ";
         GenericDialogPlus gd = new GenericDialogPlus("Parameters");
         gd.setInsets​(0, 20, 0);
-        gd.addImage(icon);
+        gd.addImage(new ImageIcon(this.getClass().getResource("/Orion_icon.png")));
         gd.addMessage("Channels selection", Font.getFont("Monospace"), Color.blue);
         for (int n = 0; n < channelsName.length; n++) {
-            gd.addChoice(channelsName[n], channels, channels[0]);
+            gd.addChoice(channelsName[n], channels, (n < 2) ? channels[0] : channels[channels.length - 1]);
         }
         gd.addMessage("Dots filter", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("Min foci volume : ", minFoci, 2, 6, "µm3");
         gd.addNumericField("Max foci volume : ", maxFoci, 2, 6, "µm3");
         gd.addNumericField("Single foci estimated volume : ", singleDotVol, 2, 6, "µm3");
+        gd.addCheckbox("Threshold on voxels inside ROI only", maskedThreshold);
+        gd.addCheckbox("Gene1/Gene2 colocalisation", colocalisation);
+        gd.addNumericField("Colocalisation distance : ", colocDistance, 2, 6, "µm");
         // Calibration
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY pixel size : ", cal.pixelWidth, 3);
         gd.addNumericField("Z pixel size : ", cal.pixelDepth, 3);
+        // Preview
+        gd.addMessage("Preview", Font.getFont("Monospace"), Color.blue);
+        gd.addCheckbox("Preview only (low resolution)", preview);
+        gd.addNumericField("Preview XY binning : ", previewBinning, 0);
+        // Batch
+        gd.addMessage("Batch", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Workers : ", workers, 0);
+        gd.addNumericField("Memory budget (0 = half heap) : ", memoryBudget, 1, 6, "GB");
+        gd.addCheckbox("Largest rois first", longestFirst);
+        gd.addChoice("Tiled detection : ", tilingModes, tiling);
+        gd.addChoice("Z-slab streaming : ", streamingModes, zStreaming);
+        gd.addNumericField("Planes per slab : ", slabPlanes, 0);
+        gd.addChoice("Objects images : ", objectsModes, objectsImages);
+        gd.addNumericField("Sample one roi every : ", objectsSample, 0);
+        gd.addChoice("Objects images compression : ", ObjectsImageWriter.COMPRESSIONS, objectsCompression);
+        gd.addChoice("Objects labels storage : ", ScratchStorage.MODES, scratch);
+        gd.addCheckbox("Reuse cached results", useCache);
+        gd.addCheckbox("Resume interrupted batch", resume);
+        gd.addCheckbox("Write columnar results (.col)", columnarResults);
         gd.showDialog();
         String[] ch = new String[channelsName.length];
         for (int i = 0; i < channelsName.length; i++)
@@ -134,8 +470,26 @@ public class RNA_Scope_Nerve_Processing {
         minFoci = gd.getNextNumber();
         maxFoci= gd.getNextNumber();
         singleDotVol = gd.getNextNumber();
+        maskedThreshold = gd.getNextBoolean();
+        colocalisation = gd.getNextBoolean();
+        colocDistance = gd.getNextNumber();
         cal.pixelWidth = gd.getNextNumber();
         cal.pixelDepth = gd.getNextNumber();        
+        preview = gd.getNextBoolean();
+        previewBinning = Math.max(1, (int) gd.getNextNumber());
+        workers = Math.max(1, (int) gd.getNextNumber());
+        memoryBudget = gd.getNextNumber();
+        longestFirst = gd.getNextBoolean();
+        tiling = gd.getNextChoice();
+        zStreaming = gd.getNextChoice();
+        slabPlanes = Math.max(1, (int) gd.getNextNumber());
+        objectsImages = gd.getNextChoice();
+        objectsSample = Math.max(1, (int) gd.getNextNumber());
+        objectsCompression = gd.getNextChoice();
+        scratch = gd.getNextChoice();
+        useCache = gd.getNextBoolean();
+        resume = gd.getNextBoolean();
+        columnarResults = gd.getNextBoolean();
         pixVol = (float) (cal.pixelWidth*cal.pixelHeight*cal.pixelDepth);
         if (gd.wasCanceled())
                 ch = null;
@@ -189,6 +543,24 @@ public class RNA_Scope_Nerve_Processing {
         return(channels);     
     }
     
+    /**
+     * Image calibration from metadata, Z = 1 if no Z size
+     * @param meta
+     * @return calibration
+     */
+    public static Calibration imageCalib(IMetadata meta) {
+        Calibration imageCal = new Calibration();
+        imageCal.pixelWidth = meta.getPixelsPhysicalSizeX(0).value().doubleValue();
+        imageCal.pixelHeight = imageCal.pixelWidth;
+        if (meta.getPixelsPhysicalSizeZ(0) != null)
+            imageCal.pixelDepth = meta.getPixelsPhysicalSizeZ(0).value().doubleValue();
+        else
+            imageCal.pixelDepth = 1;
+        imageCal.setUnit("microns");
+        return(imageCal);
+    }
+    
+    
     /**
      * Find image calibration
      * @param meta
@@ -196,18 +568,61 @@ public class RNA_Scope_Nerve_Processing {
      */
     public Calibration findImageCalib(IMetadata meta) {
         // read image calibration
-        cal.pixelWidth = meta.getPixelsPhysicalSizeX(0).value().doubleValue();
-        cal.pixelHeight = cal.pixelWidth;
-        if (meta.getPixelsPhysicalSizeZ(0) != null)
-            cal.pixelDepth = meta.getPixelsPhysicalSizeZ(0).value().doubleValue();
-        else
-            cal.pixelDepth = 1;
-        cal.setUnit("microns");
+        Calibration imageCal = imageCalib(meta);
+        cal.pixelWidth = imageCal.pixelWidth;
+        cal.pixelHeight = imageCal.pixelHeight;
+        cal.pixelDepth = imageCal.pixelDepth;
+        cal.setUnit(imageCal.getUnit());
         System.out.println("x cal = " +cal.pixelWidth+", z cal=" + cal.pixelDepth);
         return(cal);
     }
     
     
+    /**
+     * Open genes channels inside roi bounding box
+     * Read only the planes of the selected channels in one pass over Z
+     * @param reader
+     * @param roi
+     * @param chIndex channel index for each gene (-1 if none)
+     * @return genes images (null if channel index = -1)
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public ImagePlus[] openGenesChannels(ImageProcessorReader reader, Roi roi, int[] chIndex) throws FormatException, IOException {
+        long t0 = Metrics.start();
+        Rectangle rect = roi.getBounds();
+        int sizeZ = reader.getSizeZ();
+        long bytesPlane = (long) rect.width * rect.height * FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
+        ImageStack[] stacks = new ImageStack[chIndex.length];
+        for (int c = 0; c < chIndex.length; c++)
+            if (chIndex[c] >= 0)
+                stacks[c] = new ImageStack(rect.width, rect.height);
+        long bytes = 0;
+        for (int z = 0; z < sizeZ; z++) {
+            for (int c = 0; c < chIndex.length; c++) {
+                if (stacks[c] == null)
+                    continue;
+                int index = reader.getIndex(z, chIndex[c], 0);
+                ImageProcessor ip = reader.openProcessors(index, rect.x, rect.y, rect.width, rect.height)[0];
+                stacks[c].addSlice(ip);
+                bytes += bytesPlane;
+            }
+        }
+        bytesDecoded.addAndGet(bytes);
+        System.out.println("Bytes decoded = "+bytes);
+        ImagePlus[] imgs = new ImagePlus[chIndex.length];
+        for (int c = 0; c < chIndex.length; c++) {
+            if (stacks[c] == null)
+                continue;
+            imgs[c] = new ImagePlus(roi.getName()+"_C"+chIndex[c], stacks[c]);
+            imgs[c].setDimensions(1, sizeZ, 1);
+            imgs[c].setCalibration(cal);
+        }
+        Metrics.stop("decode", t0, bytes / FormatTools.getBytesPerPixel(reader.getPixelType()), bytes);
+        return(imgs);
+    }
+    
+    
     /**
      *
      * @param img
@@ -220,172 +635,160 @@ public class RNA_Scope_Nerve_Processing {
     
     
     /**
-     * Difference of Gaussians 
-     * Using CLIJ2
-     * @param imgCL
-     * @param sizeX1
-     * @param sizeY1
-     * @param sizeX2
-     * @param sizeY2
+     * Roi mask in roi bounding box, rasterized once per roi
+     * @param roi
+     * @param width
+     * @param height
+     * @return mask
+     */
+    public RoiMask roiMask(Roi roi, int width, int height) {
+        return(new RoiMask(roi, width, height));
+    }
+    
+    
+     /**
+     * Clear out side roi
+     * @param img
+     * @param mask
+     */
+    public static void clearOutSide(ImagePlus img, RoiMask mask) {
+        mask.clearOutside(img.getImageStack());
+    }
 
-     * @return imgGauss
-     */ 
-    public ClearCLBuffer DOG(ClearCLBuffer imgCL, double sizeX1, double sizeY1, double sizeZ1, double sizeX2, double sizeY2, double sizeZ2) {
-        ClearCLBuffer imgCLDOG = clij2.create(imgCL);
-        clij2.differenceOfGaussian3D(imgCL, imgCLDOG, sizeX1, sizeY1, sizeZ1, sizeX2, sizeY2, sizeZ2);
-        clij2.release(imgCL);
-        return(imgCLDOG);
+    /**
+     * Find genes population
+     * @param imgGene
+     * @param mask roi mask
+     * @param keepLabels keep labels for objects image
+     * @return genePop
+     * @throws java.io.IOException
+     */
+    public DotsPopulation findGenesPop(ImagePlus imgGene, RoiMask mask, boolean keepLabels) throws IOException {
+        return(findGenesPop(imgGene, mask, keepLabels, false));
     }
     
     
     /**
-     * Threshold 
-     * USING CLIJ2
-     * @param imgCL
-     * @param thMed
-     * @param fill 
+     * Find genes population
+     * @param imgGene
+     * @param mask roi mask
+     * @param keepLabels keep labels for objects image
+     * @param release close imgGene as soon as detection no longer needs it
+     * @return genePop
+     * @throws java.io.IOException
      */
-    public ClearCLBuffer threshold(ClearCLBuffer imgCL, String thMed) {
-        ClearCLBuffer imgCLBin = clij2.create(imgCL);
-        clij2.automaticThreshold(imgCL, imgCLBin, thMed);
-        clij2.release(imgCL);
-        return(imgCLBin);
+    public DotsPopulation findGenesPop(ImagePlus imgGene, RoiMask mask, boolean keepLabels, boolean release) throws IOException {
+        IJ.showStatus("Finding gene dots ...");
+        return(backend().findDots(imgGene, mask, this, keepLabels, release));
     }
     
+    
     /**
-     * return objects population in an binary image
-     * @param img
-     * @return pop
+     * Find populations of all genes of a roi in one backend session
+     * @param imgGenes genes images (null = no channel)
+     * @param mask roi mask
+     * @param keepLabels keep labels for objects image
+     * @param release close images as soon as detection no longer needs them
+     * @return genes populations (null for no channel)
+     * @throws java.io.IOException
      */
-    public Objects3DIntPopulation getPopFromImage(ImagePlus img, Calibration cal) {
-        // label binary images first
-        ImageLabeller labeller = new ImageLabeller();
-        ImageInt labels = labeller.getLabels(ImageHandler.wrap(img));
-        labels.setCalibration(cal);
-        Objects3DIntPopulation pop = new Objects3DIntPopulation(labels);
-        return pop;
+    public DotsPopulation[] findGenesPops(ImagePlus[] imgGenes, RoiMask mask, boolean keepLabels, boolean release) throws IOException {
+        IJ.showStatus("Finding genes dots ...");
+        return(backend().findDots(imgGenes, mask, this, keepLabels, release));
     }
     
     
+    /**
+     * Storage of kept labels
+     * @return scratch storage
+     */
+    public ScratchStorage scratchStorage() {
+        if (!scratch.equals("Mapped"))
+            return(ScratchStorage.HEAP);
+        return(new ScratchStorage(scratchFolder()));
+    }
     
-     /**
-     * Remove object with size < min and size > max
-     * @param pop
-     * @param min
-     * @param max
+    
+    /**
+     * Folder of scratch files
+     * @return folder
      */
-    public void popFilterSize(Objects3DIntPopulation pop, double min, double max) {
-        pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
-        pop.resetLabels();
+    public File scratchFolder() {
+        return(new File(scratchDir.isEmpty() ? System.getProperty("java.io.tmpdir") : scratchDir));
     }
     
-     /**
-     * Clear out side roi
-     * @param img
-     * @param roi
+    
+   /**
+     * Find roi volume
+     * @param mask roi mask
+     * @param nSlices
+     * @return volume
      */
-    public void clearOutSide(ImagePlus img, Roi roi) {
-        PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), Roi.FREEROI);
-        poly.setLocation(0, 0);
-        for (int n = 1; n <= img.getNSlices(); n++) {
-            ImageProcessor ip = img.getImageStack().getProcessor(n);
-            ip.setRoi(poly);
-            ip.setBackgroundValue(0);
-            ip.fillOutside(poly);
-        }
-        img.deleteRoi();
-        img.updateAndDraw();
+    public double roiVolume(RoiMask mask, int nSlices) {
+        return(mask.volume(cal, nSlices));
     }
-
+    
+    
     /**
-     * Find genes population
-     * @param imgGene
-     * @return genePop
+     * Tiled detection for crop
+     * @param voxels crop voxels
+     * @return true if crop must be split in tiles
      */
-    public Objects3DIntPopulation findGenesPop(ImagePlus imgGene, Roi roi) {
-        IJ.showStatus("Finding gene dots ...");
-        ClearCLBuffer imgCLMed = clij2.push(imgGene);
-        ClearCLBuffer imgCLDOG = DOG(imgCLMed, minDOGDots, minDOGDots, minDOGDots, maxDOGDots, maxDOGDots, maxDOGDots);
-        clij2.release(imgCLMed);
-        ClearCLBuffer imgCLBin = threshold(imgCLDOG, "MaxEntropy"); 
-        clij2.release(imgCLDOG);
-        ImagePlus imgBin = clij2.pull(imgCLBin);
-        if (roi != null)
-            clearOutSide(imgBin, roi);
-        Objects3DIntPopulation genePop = getPopFromImage(imgBin, cal);
-        popFilterSize(genePop, minFoci, maxFoci);
-        closeImages(imgBin);
-        clij2.release(imgCLBin);       
-        return(genePop);
+    public boolean useTiles(long voxels) {
+        switch (tiling) {
+            case "Always" :
+                return(true);
+            case "Never" :
+                return(false);
+            default :
+                return(voxels * backend.bytesPerVoxel() > backend.availableMemory() / 2);
+        }
     }
-
+    
+    
     /**
-     * Find sum volume of objects  
-     * @param dotsPop
-     * @return vol
+     * Z-slab streaming detection for crop
+     * @param sizeZ crop planes
+     * @return true if crop is read and detected slab by slab
      */
-    
-    public double findPopVolume (Objects3DIntPopulation dotsPop) {
-        IJ.showStatus("Findind object's volume");
-        double sumVol = 0;
-        for(Object3DInt obj : dotsPop.getObjects3DInt()) {
-            sumVol += new MeasureVolume(obj).getVolumeUnit();
+    public boolean useStreaming(int sizeZ) {
+        switch (zStreaming) {
+            case "Always" :
+                return(true);
+            case "Never" :
+                return(false);
+            default :
+                return(sizeZ >= 4 * (slabPlanes + 2 * SlabDetector.halo(this)));
         }
-        return(sumVol);
     }
     
     
-   /**
-     * Find roi volume
-     * @param roi
-     * @param img
-     * @return volume
+    /**
+     * Objects image is written for roi
+     * @param roiIndex roi position in batch
+     * @return 
      */
-    public double roiVolume(Roi roi, ImagePlus imgAstro) {
-        PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), PolygonRoi.FREEROI); 
-        poly.setLocation(0, 0);
-        ImageProcessor ip = imgAstro.getProcessor();
-        ip.setRoi(poly);
-        ImageStatistics stats = ImageStatistics.getStatistics(ip, Measurements.AREA, cal);
-        double volume = stats.area * imgAstro.getNSlices();
-        return(volume);
+    public boolean saveObjectsImage(int roiIndex) {
+        switch (objectsImages) {
+            case "None" :
+                return(false);
+            case "Sample" :
+                return(roiIndex % objectsSample == 0);
+            default :
+                return(true);
+        }
     }
     
     
     /**
      * save images objects population
-     * @param img
-     * @param gene1Pop
-     * @param gene2Pop
+     * @param genesPop
      * @param path
+     * @throws java.io.IOException
      */
-    public void saveGenesImage (ImagePlus img, Objects3DIntPopulation gene1Pop, Objects3DIntPopulation gene2Pop, String path) {
-        // red gene1 , green gene2
-        ImageHandler imhGene1 = ImageHandler.wrap(img).createSameDimensions();
-        ImageHandler imhGene2 = (gene2Pop.getNbObjects() == 0) ? null : imhGene1.duplicate();
-        // draw genes population
-        for (Object3DInt ob : gene1Pop.getObjects3DInt())
-            ob.drawObject(imhGene1, 255);
-        if (imhGene2 != null) {
-            for (Object3DInt ob : gene2Pop.getObjects3DInt())
-                ob.drawObject(imhGene2, 255);
-            ImagePlus[] imgColors = {imhGene1.getImagePlus(), imhGene2.getImagePlus()};
-            ImagePlus imgObjects = new RGBStackMerge().mergeHyperstacks(imgColors, true);
-            imgObjects.setCalibration(cal);
-            IJ.run(imgObjects, "Enhance Contrast", "saturated=0.35");
-            // Save images
-            FileSaver ImgObjectsFile = new FileSaver(imgObjects);
-            ImgObjectsFile.saveAsTiff(path);
-        }
-        else {
-            ImagePlus imgSave = imhGene1.getImagePlus();
-            // Save images
-            FileSaver ImgObjectsFile = new FileSaver(imgSave);
-            ImgObjectsFile.saveAsTiff(path);
-        }
-        imhGene1.closeImagePlus();
-        if (imhGene2 != null)
-            imhGene2.closeImagePlus();
+    public void saveGenesImage (DotsPopulation[] genesPop, String path) throws IOException {
+        // one channel per gene, trailing genes without objects are skipped
+        new ObjectsImageWriter(objectsCompression).write(genesPop, path);
     }
    
 }
@@ -0,0 +1,243 @@
+package Genes_Tools;
+
+
+import ij.gui.Roi;
+import java.awt.Polygon;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * Per roi results cache kept in Results folder (cache.tsv, one file per shard)
+ * Key : image file (size, modification time, CRC of first 64 KB), roi geometry, genes channels
+ * and detection parameters (dots volume filter, XY and Z DoG sigmas, threshold method, calibration, backend)
+ * Entries store roi volume, genes volumes, thresholds and objects volume histograms, estimated dots numbers are
+ * recomputed from volumes so changing single dot volume does not open any image
+ * @author phm
+ */
+
+public class ResultsCache {
+
+    private static final int HEAD_BYTES = 1 << 16;
+
+    private final File cacheFile;
+    // entries fields : key, roi name, roi volume, genes volumes, genes thresholds and voxels, genes objects, voxels and volume histograms,
+    // gene1/gene2 overlapping and near dots if colocalised
+    private final int nGenes, entryFields;
+    private final boolean coloc;
+    private final String paramsKey;
+    private final Map<String, String[]> entries = new LinkedHashMap<>();
+    private final Map<String, String> fingerprints = new HashMap<>();
+    private boolean changed = false;
+
+    // rois read from cache in this run
+    public int hits = 0;
+
+
+    /**
+     * Load cache of results folder
+     * @param outDirResults
+     * @param fileName cache file name
+     * @param genes
+     * @param chIndex genes channels
+     * @throws java.io.IOException
+     */
+    public ResultsCache(String outDirResults, String fileName, RNA_Scope_Nerve_Processing genes, int[] chIndex) throws IOException {
+        cacheFile = new File(outDirResults, fileName);
+        paramsKey = genes.paramsKey(chIndex);
+        nGenes = chIndex.length;
+        coloc = genes.colocalised(nGenes);
+        entryFields = 3 + 6*nGenes + (coloc ? 2 : 0);
+        // entries of all shards are reused, only own file is written
+        File[] files = new File(outDirResults).listFiles((dir, name) -> name.startsWith("cache") && name.endsWith(".tsv"));
+        if (files != null) {
+            for (File f : files) {
+                try (BufferedReader in = new BufferedReader(new FileReader(f))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] fields = line.split("\t", -1);
+                        if (fields.length == entryFields)
+                            entries.put(fields[0], fields);
+                    }
+                }
+            }
+            System.out.println("Results cache : "+entries.size()+" rois");
+        }
+    }
+
+
+    /**
+     * Image file fingerprint : name, size, modification time and CRC of first 64 KB
+     * @param imageFile
+     * @return fingerprint
+     * @throws java.io.IOException
+     */
+    public static String fingerprint(String imageFile) throws IOException {
+        File f = new File(imageFile);
+        byte[] head = new byte[HEAD_BYTES];
+        int n = 0;
+        try (InputStream in = new FileInputStream(f)) {
+            int r;
+            while (n < head.length && (r = in.read(head, n, head.length - n)) > 0)
+                n += r;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(head, 0, n);
+        return(f.getName()+","+f.length()+","+f.lastModified()+","+Long.toHexString(crc.getValue()));
+    }
+
+
+    /**
+     * Image file fingerprint, computed once per file
+     */
+    private String cachedFingerprint(String imageFile) throws IOException {
+        String fp = fingerprints.get(imageFile);
+        if (fp == null) {
+            fp = fingerprint(imageFile);
+            fingerprints.put(imageFile, fp);
+        }
+        return(fp);
+    }
+
+
+    /**
+     * Roi geometry, null roi = whole image
+     */
+    private static String geometry(Roi roi) {
+        if (roi == null)
+            return("whole");
+        StringBuilder sb = new StringBuilder();
+        sb.append(roi.getType()).append(',').append(roi.getName());
+        Polygon p = roi.getPolygon();
+        for (int i = 0; i < p.npoints; i++)
+            sb.append(',').append(p.xpoints[i]).append(':').append(p.ypoints[i]);
+        return(sb.toString());
+    }
+
+
+    private static String sha1(String s) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest)
+                sb.append(String.format("%02x", b));
+            return(sb.toString());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+
+    /**
+     * Roi key without parameters : image file fingerprint and roi geometry
+     * @param fingerprint image file fingerprint
+     * @param roi null = whole image
+     * @return key
+     * @throws java.io.IOException
+     */
+    public static String roiKey(String fingerprint, Roi roi) throws IOException {
+        return(sha1(fingerprint+"|"+geometry(roi)));
+    }
+
+
+    /**
+     * Cache key of task
+     * @param task
+     * @return key
+     * @throws java.io.IOException
+     */
+    public String key(RoiTask task) throws IOException {
+        return(sha1(cachedFingerprint(task.imageFile)+"|"+geometry(task.roi)+"|"+paramsKey));
+    }
+
+
+    /**
+     * Fill task with cached results
+     * @param task
+     * @return true if task was found in cache
+     */
+    public synchronized boolean restore(RoiTask task) {
+        String[] e = entries.get(task.cacheKey);
+        if (e == null)
+            return(false);
+        task.roiName = e[1];
+        task.roiVol = Double.parseDouble(e[2]);
+        task.genesVol = new double[nGenes];
+        task.thresholds = new double[nGenes];
+        task.thresholdVoxels = new long[nGenes];
+        task.histograms = new VolumeHistogram[nGenes];
+        int th = 3 + nGenes, hist = 3 + 3*nGenes;
+        for (int g = 0; g < nGenes; g++) {
+            task.genesVol[g] = Double.parseDouble(e[3 + g]);
+            task.thresholds[g] = Double.parseDouble(e[th + 2*g]);
+            task.thresholdVoxels[g] = Long.parseLong(e[th + 2*g + 1]);
+            task.histograms[g] = VolumeHistogram.parse(Long.parseLong(e[hist + 3*g]), Long.parseLong(e[hist + 3*g + 1]), e[hist + 3*g + 2]);
+        }
+        if (coloc && !e[3 + 6*nGenes].isEmpty())
+            task.coloc = new Colocalisation(Long.parseLong(e[3 + 6*nGenes]), Long.parseLong(e[4 + 6*nGenes]));
+        task.cached = true;
+        hits++;
+        return(true);
+    }
+
+
+    /**
+     * Add results of task
+     * @param task
+     */
+    public synchronized void put(RoiTask task) {
+        String[] e = new String[entryFields];
+        e[0] = task.cacheKey;
+        e[1] = task.roiName;
+        e[2] = String.valueOf(task.roiVol);
+        int th = 3 + nGenes, hist = 3 + 3*nGenes;
+        for (int g = 0; g < nGenes; g++) {
+            e[3 + g] = String.valueOf(task.genesVol[g]);
+            e[th + 2*g] = String.valueOf(task.thresholds[g]);
+            e[th + 2*g + 1] = String.valueOf(task.thresholdVoxels[g]);
+            e[hist + 3*g] = String.valueOf(task.histograms[g].objects);
+            e[hist + 3*g + 1] = String.valueOf(task.histograms[g].voxels);
+            e[hist + 3*g + 2] = task.histograms[g].toString();
+        }
+        if (coloc) {
+            e[3 + 6*nGenes] = (task.coloc == null) ? "" : String.valueOf(task.coloc.overlapping);
+            e[4 + 6*nGenes] = (task.coloc == null) ? "" : String.valueOf(task.coloc.near);
+        }
+        entries.put(task.cacheKey, e);
+        changed = true;
+    }
+
+
+    /**
+     * Write cache file if new rois were added
+     * @throws java.io.IOException
+     */
+    public synchronized void save() throws IOException {
+        if (!changed)
+            return;
+        File tmp = new File(cacheFile.getPath()+".tmp");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(tmp))) {
+            for (String[] e : entries.values()) {
+                out.write(String.join("\t", e));
+                out.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        changed = false;
+    }
+}
@@ -0,0 +1,261 @@
+package Genes_Tools;
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Results rows buffered and committed in batches
+ * Each commit writes the whole table to a temp file, syncs it and renames it over results file,
+ * so results file always holds complete rows, even if the JVM dies.
+ * A restarted run with the same parameters keeps committed rows of the same rois and skips them :
+ * the resume file holds the parameters key then the roi key (image file fingerprint and roi geometry) of each committed row.
+ * Optional columnar file (.col), big endian :
+ * "RNSC", int version, int columns, int rows, per column name (UTF) and type (0 = string, 1 = double, 2 = long),
+ * then per column all rows values (writeUTF, double or long)
+ * @author phm
+ */
+
+public class ResultsSink {
+
+    private static final int VERSION = 1;
+
+    private final File file, keyFile, colFile;
+    private final String[] columns;
+    private final Class<?>[] types;
+    private final String paramsKey;
+
+    // rows committed and rows waiting for commit, with their roi keys
+    private final List<Object[]> rows = new ArrayList<>();
+    private final List<String> rowKeys = new ArrayList<>();
+    private int committed = 0;
+    private long lastCommit = System.currentTimeMillis();
+
+    // commit after batchRows rows or commitSeconds since last commit
+    public int batchRows = 256;
+    public int commitSeconds = 30;
+
+
+    /**
+     * Open results file, committed rows and their roi keys are read back if parameters key is unchanged
+     * @param path results file
+     * @param columns
+     * @param types String, Double or Long per column
+     * @param paramsKey parameters of results rows
+     * @param resume keep committed rows
+     * @param columnar write columnar file too
+     * @throws java.io.IOException
+     */
+    public ResultsSink(String path, String[] columns, Class<?>[] types, String paramsKey, boolean resume, boolean columnar) throws IOException {
+        this.file = new File(path);
+        this.keyFile = new File(path+".resume");
+        this.colFile = columnar ? new File(path.replaceFirst("\\.[^.\\\\/]*$", "")+".col") : null;
+        this.columns = columns;
+        this.types = types;
+        this.paramsKey = paramsKey;
+        if (resume && file.exists() && keyFile.exists()) {
+            List<String> keys = Files.readAllLines(keyFile.toPath(), StandardCharsets.UTF_8);
+            if (!keys.isEmpty() && paramsKey.equals(keys.get(0).trim())) {
+                read();
+                // rows committed without their keys are dropped
+                rowKeys.addAll(keys.subList(1, Math.min(keys.size(), rows.size() + 1)));
+                rows.subList(rowKeys.size(), rows.size()).clear();
+            }
+        }
+        committed = rows.size();
+        write();
+    }
+
+
+    /**
+     * Read committed rows
+     */
+    private void read() throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line = in.readLine();
+            if (line == null || !line.equals(String.join("\t", columns)))
+                return;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length != columns.length)
+                    break;
+                Object[] row = new Object[fields.length];
+                for (int c = 0; c < fields.length; c++) {
+                    if (types[c] == Double.class)
+                        row[c] = Double.valueOf(fields[c]);
+                    else if (types[c] == Long.class)
+                        row[c] = Long.valueOf(fields[c]);
+                    else
+                        row[c] = fields[c];
+                }
+                rows.add(row);
+            }
+        }
+    }
+
+
+    /**
+     * Keep committed rows of the first tasks with same image and roi, drop others
+     * @param tasks in sequential order, with roi keys
+     * @return number of tasks already done
+     * @throws java.io.IOException
+     */
+    public synchronized int resume(List<RoiTask> tasks) throws IOException {
+        int done = 0;
+        while (done < committed && done < tasks.size()) {
+            RoiTask task = tasks.get(done);
+            Object[] row = rows.get(done);
+            // whole image roi name is only known once image is read
+            if (!row[0].equals(task.rootName) || (task.roi != null && !row[1].equals(task.roi.getName())))
+                break;
+            // image replaced or roi edited
+            if (!rowKeys.get(done).equals(task.roiKey))
+                break;
+            done++;
+        }
+        if (done < committed) {
+            rows.subList(done, rows.size()).clear();
+            rowKeys.subList(done, rowKeys.size()).clear();
+            committed = done;
+            write();
+        }
+        if (done > 0)
+            System.out.println("Resuming batch : "+done+" of "+tasks.size()+" rois already in "+file.getName());
+        return(done);
+    }
+
+
+    /**
+     * Add next row, rows must be added in order
+     * @param row
+     * @throws java.io.IOException
+     */
+    public void add(Object[] row) throws IOException {
+        add(row, "");
+    }
+
+
+    /**
+     * Add next row, rows must be added in order
+     * @param row
+     * @param roiKey key of row roi, compared when resuming
+     * @throws java.io.IOException
+     */
+    public synchronized void add(Object[] row, String roiKey) throws IOException {
+        rows.add(row);
+        rowKeys.add(roiKey);
+        if (rows.size() - committed >= batchRows || System.currentTimeMillis() - lastCommit >= commitSeconds * 1000L)
+            commit();
+    }
+
+
+    /**
+     * Rows committed to results file
+     * @return rows
+     */
+    public synchronized int committedRows() {
+        return(committed);
+    }
+
+
+    /**
+     * Commit pending rows
+     * @throws java.io.IOException
+     */
+    public synchronized void commit() throws IOException {
+        if (rows.size() == committed)
+            return;
+        write();
+        committed = rows.size();
+    }
+
+
+    /**
+     * Commit pending rows
+     * @throws java.io.IOException
+     */
+    public void close() throws IOException {
+        commit();
+    }
+
+
+    /**
+     * Write all rows to temp files and rename them over results files, then write their keys
+     * (a crash in between leaves rows without keys, they are not resumed)
+     */
+    private void write() throws IOException {
+        File tmp = new File(file.getPath()+".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8), 1 << 16);
+            out.write(String.join("\t", columns));
+            out.write('\n');
+            StringBuilder sb = new StringBuilder();
+            for (Object[] row : rows) {
+                sb.setLength(0);
+                for (int c = 0; c < row.length; c++)
+                    sb.append((c == 0) ? "" : "\t").append(row[c]);
+                out.write(sb.append('\n').toString());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (colFile != null)
+            writeColumns();
+        File keyTmp = new File(keyFile.getPath()+".tmp");
+        try (FileOutputStream fos = new FileOutputStream(keyTmp)) {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8), 1 << 16);
+            out.write(paramsKey);
+            out.write('\n');
+            for (String key : rowKeys) {
+                out.write(key);
+                out.write('\n');
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(keyTmp.toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lastCommit = System.currentTimeMillis();
+    }
+
+
+    private void writeColumns() throws IOException {
+        File tmp = new File(colFile.getPath()+".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            out.writeBytes("RNSC");
+            out.writeInt(VERSION);
+            out.writeInt(columns.length);
+            out.writeInt(rows.size());
+            for (int c = 0; c < columns.length; c++) {
+                out.writeUTF(columns[c]);
+                out.writeByte((types[c] == Double.class) ? 1 : (types[c] == Long.class) ? 2 : 0);
+            }
+            for (int c = 0; c < columns.length; c++)
+                for (Object[] row : rows) {
+                    if (types[c] == Double.class)
+                        out.writeDouble((Double) row[c]);
+                    else if (types[c] == Long.class)
+                        out.writeLong((Long) row[c]);
+                    else
+                        out.writeUTF((String) row[c]);
+                }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), colFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,158 @@
+package Genes_Tools;
+
+
+import ij.ImageStack;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+
+/**
+ * Roi rasterized once in its bounding box
+ * Pixels inside are kept as row spans (pixel index ranges [start, end) of the slice, row by row),
+ * so masking, area, histograms and binarization only visit pixels inside the roi
+ * @author phm
+ */
+
+public class RoiMask {
+
+    public final int width, height;
+    // pixels inside roi
+    public final long area;
+    // flattened spans : start0, end0, start1, end1 ...
+    public final int[] spans;
+    // 255 inside roi
+    private final ByteProcessor mask;
+
+
+    /**
+     * Rasterize roi in its bounding box
+     * @param roi
+     * @param width
+     * @param height
+     */
+    public RoiMask(Roi roi, int width, int height) {
+        this(rasterize(roi, width, height));
+    }
+
+
+    /**
+     * Mask from binary plane
+     * @param mask non zero inside
+     */
+    public RoiMask(ByteProcessor mask) {
+        this.mask = mask;
+        this.width = mask.getWidth();
+        this.height = mask.getHeight();
+        byte[] pix = (byte[]) mask.getPixels();
+        int[] s = new int[64];
+        int n = 0;
+        long inside = 0;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int x = 0;
+            while (x < width) {
+                while (x < width && pix[row + x] == 0)
+                    x++;
+                if (x == width)
+                    break;
+                int start = x;
+                while (x < width && pix[row + x] != 0)
+                    x++;
+                if (n + 2 > s.length)
+                    s = Arrays.copyOf(s, s.length * 2);
+                s[n++] = row + start;
+                s[n++] = row + x;
+                inside += x - start;
+            }
+        }
+        this.spans = Arrays.copyOf(s, n);
+        this.area = inside;
+    }
+
+
+    private static ByteProcessor rasterize(Roi roi, int width, int height) {
+        PolygonRoi poly = new PolygonRoi(roi.getFloatPolygon(), Roi.FREEROI);
+        poly.setLocation(0, 0);
+        ByteProcessor mask = new ByteProcessor(width, height);
+        mask.setColor(255);
+        mask.fill(poly);
+        return(mask);
+    }
+
+
+    /**
+     * Mask plane, 255 inside roi
+     * @return mask
+     */
+    public ByteProcessor getMask() {
+        return(mask);
+    }
+
+
+    /**
+     * All pixels of bounding box are inside roi
+     * @return true for rectangles
+     */
+    public boolean isFull() {
+        return(area == (long) width * height);
+    }
+
+
+    /**
+     * Roi volume
+     * @param cal
+     * @param nSlices
+     * @return volume
+     */
+    public double volume(Calibration cal, int nSlices) {
+        return(area * cal.pixelWidth * cal.pixelHeight * nSlices);
+    }
+
+
+    /**
+     * Mask of a rectangle of the bounding box (tiles)
+     * @param rect
+     * @return mask
+     */
+    public RoiMask crop(Rectangle rect) {
+        byte[] pix = (byte[]) mask.getPixels();
+        byte[] sub = new byte[rect.width * rect.height];
+        for (int y = 0; y < rect.height; y++)
+            System.arraycopy(pix, (rect.y + y) * width + rect.x, sub, y * rect.width, rect.width);
+        return(new RoiMask(new ByteProcessor(rect.width, rect.height, sub)));
+    }
+
+
+    /**
+     * Clear pixels outside roi (gaps between spans) in all slices
+     * @param stack
+     */
+    public void clearOutside(ImageStack stack) {
+        if (isFull())
+            return;
+        int size = width * height;
+        for (int z = 1; z <= stack.getSize(); z++) {
+            Object pixels = stack.getPixels(z);
+            int from = 0;
+            for (int s = 0; s <= spans.length; s += 2) {
+                int to = (s < spans.length) ? spans[s] : size;
+                if (to > from) {
+                    if (pixels instanceof byte[])
+                        Arrays.fill((byte[]) pixels, from, to, (byte) 0);
+                    else if (pixels instanceof short[])
+                        Arrays.fill((short[]) pixels, from, to, (short) 0);
+                    else if (pixels instanceof float[])
+                        Arrays.fill((float[]) pixels, from, to, 0);
+                    else
+                        Arrays.fill((int[]) pixels, from, to, 0);
+                }
+                if (s < spans.length)
+                    from = spans[s + 1];
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+
+/**
+ * One roi of one image going through the batch stages
+ * @author phm
+ */
+
+public class RoiTask {
+    
+    // position in the sequential order, used to write results rows in order
+    public final int index;
+    public final String imageFile;
+    public final String rootName;
+    // null if no roi file, whole image is used
+    public Roi roi;
+    // genes voxels to read, from images scan (longest jobs first)
+    public long voxels = 0;
+    
+    // image file fingerprint and roi geometry, checked when resuming committed rows
+    public String roiKey;
+    // results cache key, results read from cache
+    public String cacheKey;
+    public boolean cached = false;
+    
+    // memory budget permits held by this task
+    public int permits = 0;
+    // task holds one of the decoded rois in flight
+    public boolean inFlight = false;
+    
+    // decode
+    public int sizeZ = 0;
+    // crop too large, detection is done on tiles
+    public boolean tiled = false;
+    // deep stack, crop is read and detected by Z-slabs
+    public boolean streamed = false;
+    public ImagePlus[] imgGenes;
+    // detect
+    public String roiName;
+    public double roiVol = 0;
+    public DotsPopulation[] genesPop;
+    public double[] genesVol;
+    public double[] thresholds;
+    public long[] thresholdVoxels;
+    // objects volume histograms
+    public VolumeHistogram[] histograms;
+    // gene1/gene2 colocalisation, null if not measured
+    public Colocalisation coloc;
+    
+    
+    public RoiTask(int index, String imageFile, String rootName, Roi roi) {
+        this.index = index;
+        this.imageFile = imageFile;
+        this.rootName = rootName;
+        this.roi = roi;
+    }
+    
+    
+    /**
+     * Close images of this task
+     */
+    public void closeImages() {
+        if (imgGenes == null)
+            return;
+        for (ImagePlus img : imgGenes)
+            if (img != null)
+                img.close();
+        imgGenes = null;
+    }
+}
@@ -0,0 +1,169 @@
+package Genes_Tools;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Storage of labels stacks kept from detection until the objects image is written,
+ * and of DoG slices of streamed detection
+ * Heap : int arrays on Java heap
+ * Mapped : slices mapped on a scratch file, outside Java heap, written back by the OS under memory pressure.
+ * The scratch file is deleted as soon as it is mapped, its space is freed when the buffers are garbage collected
+ * @author phm
+ */
+
+public class ScratchStorage {
+
+    public static final String[] MODES = {"Heap", "Mapped"};
+    public static final ScratchStorage HEAP = new ScratchStorage(null);
+
+    // max bytes of one mapping, holds whole slices
+    private static final long MAP_BYTES = 1L << 30;
+
+    // scratch files folder, null = heap
+    public final File dir;
+
+
+    public ScratchStorage(File dir) {
+        this.dir = dir;
+    }
+
+
+    public boolean isMapped() {
+        return(dir != null);
+    }
+
+
+    /**
+     * Int slices, heap slices are backed by an array
+     * @param depth
+     * @param sliceSize
+     * @return slices
+     * @throws java.io.IOException
+     */
+    public IntBuffer[] intSlices(int depth, int sliceSize) throws IOException {
+        IntBuffer[] slices = new IntBuffer[depth];
+        if (dir == null) {
+            for (int z = 0; z < depth; z++)
+                slices[z] = IntBuffer.wrap(new int[sliceSize]);
+            return(slices);
+        }
+        ByteBuffer[] maps = mapSlices(depth, (long) sliceSize * Integer.BYTES);
+        for (int z = 0; z < depth; z++)
+            slices[z] = maps[z].asIntBuffer();
+        return(slices);
+    }
+
+
+    /**
+     * Float slices, heap slices are backed by an array
+     * @param depth
+     * @param sliceSize
+     * @return slices
+     * @throws java.io.IOException
+     */
+    public FloatBuffer[] floatSlices(int depth, int sliceSize) throws IOException {
+        FloatBuffer[] slices = new FloatBuffer[depth];
+        if (dir == null) {
+            for (int z = 0; z < depth; z++)
+                slices[z] = FloatBuffer.wrap(new float[sliceSize]);
+            return(slices);
+        }
+        ByteBuffer[] maps = mapSlices(depth, (long) sliceSize * Float.BYTES);
+        for (int z = 0; z < depth; z++)
+            slices[z] = maps[z].asFloatBuffer();
+        return(slices);
+    }
+
+
+    /**
+     * Slices mapped on a new scratch file, native byte order
+     */
+    private ByteBuffer[] mapSlices(int depth, long sliceBytes) throws IOException {
+        ByteBuffer[] slices = new ByteBuffer[depth];
+        int perMap = (int) Math.max(1, MAP_BYTES / Math.max(1, sliceBytes));
+        File file = File.createTempFile("rnascope_", ".scratch", dir);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            for (int z0 = 0; z0 < depth; z0 += perMap) {
+                int n = Math.min(perMap, depth - z0);
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, z0 * sliceBytes, n * sliceBytes);
+                for (int i = 0; i < n; i++) {
+                    map.limit((int) ((i + 1) * sliceBytes));
+                    map.position((int) (i * sliceBytes));
+                    // slice() resets byte order
+                    slices[z0 + i] = map.slice().order(ByteOrder.nativeOrder());
+                }
+            }
+        } finally {
+            // mapping stays valid without file
+            if (!file.delete())
+                file.deleteOnExit();
+        }
+        return(slices);
+    }
+
+
+    /**
+     * Copy values to slice
+     * @param slice
+     * @param values
+     */
+    public static void put(IntBuffer slice, int[] values) {
+        IntBuffer dst = slice.duplicate();
+        dst.clear();
+        dst.put(values, 0, dst.remaining());
+    }
+
+
+    /**
+     * Slice values, array of heap slice or copy in values
+     * @param slice
+     * @param values buffer for mapped slice
+     * @return values
+     */
+    public static int[] get(IntBuffer slice, int[] values) {
+        if (slice.hasArray())
+            return(slice.array());
+        IntBuffer src = slice.duplicate();
+        src.clear();
+        src.get(values, 0, src.remaining());
+        return(values);
+    }
+
+
+    /**
+     * Copy values to slice
+     * @param slice
+     * @param values
+     */
+    public static void put(FloatBuffer slice, float[] values) {
+        FloatBuffer dst = slice.duplicate();
+        dst.clear();
+        dst.put(values, 0, dst.remaining());
+    }
+
+
+    /**
+     * Slice values, array of heap slice or copy in values
+     * @param slice
+     * @param values buffer for mapped slice
+     * @return values
+     */
+    public static float[] get(FloatBuffer slice, float[] values) {
+        if (slice.hasArray())
+            return(slice.array());
+        FloatBuffer src = slice.duplicate();
+        src.clear();
+        src.get(values, 0, src.remaining());
+        return(values);
+    }
+}
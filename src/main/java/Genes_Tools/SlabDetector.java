@@ -0,0 +1,221 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Z-slab streaming detection for deep stacks
+ * A reader thread decodes slabs of planes into a bounded queue while the detect thread computes
+ * the DoG of each slab on a window with a Z halo sized to the DoG sigma, so decoding and DoG overlap.
+ * Slabs DoG are spilled to a mapped scratch file and added to the threshold histogram,
+ * then binarized inside roi and labelled slice by slice, components are carried from slice to slice (26-connectivity).
+ * Heap used is set by slab size and halo, not by stack depth.
+ * With CPU backend, halo covers the Gaussian kernels and dots are the same as whole stack detection
+ * @author phm
+ */
+
+public class SlabDetector {
+
+    // slabs decoded ahead of detection
+    public static final int QUEUE_SLABS = 2;
+    private static final ImageProcessor[] END = new ImageProcessor[0];
+
+    private final RNA_Scope_Nerve_Processing genes;
+    private final ImageProcessorReader reader;
+    private final Rectangle crop;
+    private final RoiMask roiMask;
+    private final int sizeZ;
+
+    // planes per slab and Z halo in planes
+    public final int slabPlanes;
+    public final int halo;
+
+
+    /**
+     * @param genes
+     * @param reader reader opened on image, used by the reader thread only during findDots
+     * @param roi
+     * @param mask roi mask in roi bounding box
+     */
+    public SlabDetector(RNA_Scope_Nerve_Processing genes, ImageProcessorReader reader, Roi roi, RoiMask mask) {
+        this.genes = genes;
+        this.reader = reader;
+        this.crop = roi.getBounds();
+        this.roiMask = mask;
+        this.sizeZ = reader.getSizeZ();
+        this.slabPlanes = Math.max(1, genes.slabPlanes);
+        this.halo = halo(genes);
+    }
+
+
+    /**
+     * Z halo, Gaussian kernels radius in Z
+     * @param genes
+     * @return planes
+     */
+    public static int halo(RNA_Scope_Nerve_Processing genes) {
+        return((int) Math.ceil(4 * genes.maxDOGDotsZ));
+    }
+
+
+    /**
+     * Planes on heap at most : queued slabs, slab being read and DoG window
+     * @param slabPlanes
+     * @param halo
+     * @return planes
+     */
+    public static int planesInFlight(int slabPlanes, int halo) {
+        return((QUEUE_SLABS + 2) * slabPlanes + 2 * halo);
+    }
+
+
+    /**
+     * Decode slabs of channel in a new thread, END is queued after the last slab or on error
+     * @param ch
+     * @param queue
+     * @param error first decoding error
+     * @return thread
+     */
+    private Thread startReader(int ch, BlockingQueue<ImageProcessor[]> queue, Exception[] error) {
+        long bytesPlane = (long) crop.width * crop.height * FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
+        Thread thread = new Thread(() -> {
+            try {
+                try {
+                    for (int z0 = 0; z0 < sizeZ; z0 += slabPlanes) {
+                        ImageProcessor[] slab = new ImageProcessor[Math.min(slabPlanes, sizeZ - z0)];
+                        for (int i = 0; i < slab.length; i++)
+                            slab[i] = reader.openProcessors(reader.getIndex(z0 + i, ch, 0), crop.x, crop.y, crop.width, crop.height)[0];
+                        genes.bytesDecoded.addAndGet(bytesPlane * slab.length);
+                        queue.put(slab);
+                    }
+                } catch (FormatException | IOException | RuntimeException ex) {
+                    error[0] = ex;
+                }
+                queue.put(END);
+            } catch (InterruptedException ex) {
+                // detection stopped
+            }
+        }, "slab reader");
+        thread.setDaemon(true);
+        thread.start();
+        return(thread);
+    }
+
+
+    /**
+     * Next slab of queue
+     */
+    private ImageProcessor[] take(BlockingQueue<ImageProcessor[]> queue, Exception[] error) throws FormatException, IOException {
+        ImageProcessor[] slab;
+        try {
+            slab = queue.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Slab reading interrupted", ex);
+        }
+        if (slab == END) {
+            if (error[0] instanceof FormatException)
+                throw (FormatException) error[0];
+            if (error[0] instanceof IOException)
+                throw (IOException) error[0];
+            if (error[0] != null)
+                throw (RuntimeException) error[0];
+            throw new IOException("Missing planes in slabs");
+        }
+        return(slab);
+    }
+
+
+    /**
+     * Find dots of channel
+     * @param ch channel index
+     * @param keepLabels labels are kept in genes scratch storage
+     * @return dots population
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public DotsPopulation findDots(int ch, boolean keepLabels) throws FormatException, IOException {
+        int width = crop.width, height = crop.height, size = width * height;
+        System.out.println("Z-slab streaming : "+((sizeZ + slabPlanes - 1) / slabPlanes)+" slabs of "+slabPlanes+" planes, halo = "+halo);
+        BlockingQueue<ImageProcessor[]> queue = new ArrayBlockingQueue<>(QUEUE_SLABS);
+        Exception[] error = new Exception[1];
+        Thread readerThread = startReader(ch, queue, error);
+        MaskedHistogram hist = new MaskedHistogram(genes.maskedThreshold ? roiMask : null);
+        // DoG spilled off heap until threshold is known
+        FloatBuffer[] dog = new ScratchStorage(genes.scratchFolder()).floatSlices(sizeZ, size);
+        try {
+            // decoded planes from winStart, window of DoG is [z0 - halo, z1 + halo[
+            List<ImageProcessor> planes = new ArrayList<>();
+            int winStart = 0;
+            for (int z0 = 0; z0 < sizeZ; z0 += slabPlanes) {
+                int z1 = Math.min(sizeZ, z0 + slabPlanes);
+                int from = Math.max(0, z0 - halo), to = Math.min(sizeZ, z1 + halo);
+                long t0 = Metrics.start();
+                while (winStart + planes.size() < to)
+                    planes.addAll(Arrays.asList(take(queue, error)));
+                Metrics.stop("slab wait", t0, 0, 0);
+                planes.subList(0, from - winStart).clear();
+                winStart = from;
+                ImageStack stack = new ImageStack(width, height);
+                for (int z = from; z < to; z++)
+                    stack.addSlice(planes.get(z - winStart));
+                ImagePlus img = new ImagePlus("slab_"+z0, stack);
+                img.setCalibration(genes.cal);
+                float[][] winDog = genes.backend().DOG(img, genes.minDOGDots, genes.maxDOGDots, genes.minDOGDotsZ, genes.maxDOGDotsZ);
+                for (int z = z0; z < z1; z++) {
+                    float[] slice = winDog[z - from];
+                    hist.addRange(slice);
+                    ScratchStorage.put(dog[z], slice);
+                }
+            }
+        } finally {
+            readerThread.interrupt();
+            try {
+                readerThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        long t0 = Metrics.start();
+        float[] values = new float[size];
+        for (FloatBuffer slice : dog)
+            hist.addValues(ScratchStorage.get(slice, values));
+        float th = hist.computeThreshold(genes.geneThreshold);
+        Metrics.stop("slabs threshold", t0, (long) size * sizeZ, 0);
+
+        // binarize inside roi and label slice by slice
+        t0 = Metrics.start();
+        int[] spans = (roiMask == null) ? new int[]{0, size} : roiMask.spans;
+        Labeller3D labeller = new Labeller3D(genes.scratchStorage());
+        labeller.begin(width, height, sizeZ, keepLabels);
+        for (FloatBuffer slice : dog) {
+            float[] d = ScratchStorage.get(slice, values);
+            boolean[] fg = new boolean[size];
+            for (int s = 0; s < spans.length; s += 2)
+                for (int n = spans[s]; n < spans[s + 1]; n++)
+                    fg[n] = d[n] >= th;
+            labeller.addSlice(fg);
+        }
+        DotsPopulation pop = labeller.end(genes.cal, genes.minFoci, genes.maxFoci);
+        Metrics.stop("slabs label", t0, (long) size * sizeZ, 0);
+        pop.threshold = th;
+        pop.thresholdVoxels = hist.count;
+        return(pop);
+    }
+}
@@ -0,0 +1,279 @@
+package Genes_Tools;
+
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Tiled detection for rois whose crop does not fit in device or heap memory
+ * Crop is split in XY tiles read with a halo sized to the DoG sigma (full Z), each tile is read and DoG filtered once,
+ * DoG of tiles cores is spilled to a mapped scratch file until the threshold is computed on the histogram of all cores,
+ * tiles cores are labelled and labels are stitched across tiles borders (26-connectivity)
+ * so dots cut by a border are counted once.
+ * Labels image is not kept, objects image can't be saved in tiled mode
+ * @author phm
+ */
+
+public class TiledDetector {
+
+    private final RNA_Scope_Nerve_Processing genes;
+    private final ImageProcessorReader reader;
+    private final Rectangle crop;
+    private final RoiMask roiMask;
+    private final int sizeZ;
+
+    // tile core size and halo in pixels
+    public final int tileSize;
+    public final int halo;
+
+
+    /**
+     * @param genes
+     * @param reader reader opened on image
+     * @param roi
+     * @param mask roi mask in roi bounding box
+     */
+    public TiledDetector(RNA_Scope_Nerve_Processing genes, ImageProcessorReader reader, Roi roi, RoiMask mask) {
+        this.genes = genes;
+        this.reader = reader;
+        this.crop = roi.getBounds();
+        this.roiMask = mask;
+        this.sizeZ = reader.getSizeZ();
+        // Gaussian kernels radius
+        halo = (int) Math.ceil(4 * genes.maxDOGDots);
+        tileSize = tileSize(genes.backend().availableMemory(), genes.backend().bytesPerVoxel(), sizeZ, halo);
+    }
+
+
+    /**
+     * Tile core size from available memory, half of it is used by one tile with its halo
+     * @param availableBytes
+     * @param bytesPerVoxel
+     * @param sizeZ
+     * @param halo
+     * @return tile core size
+     */
+    public static int tileSize(long availableBytes, int bytesPerVoxel, int sizeZ, int halo) {
+        long voxels = availableBytes / 2 / bytesPerVoxel / Math.max(1, sizeZ);
+        int side = (int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(voxels));
+        return(Math.max(4 * halo, side - 2 * halo));
+    }
+
+
+    /**
+     * Tile core DoG, spilled to scratch, and mask
+     */
+    private class Tile {
+        final Rectangle core;
+        FloatBuffer[] dog;
+        RoiMask mask;
+
+        Tile(Rectangle core) {
+            this.core = core;
+        }
+
+        /**
+         * Read tile with halo inside crop and spill DoG of core
+         */
+        void read(int ch, ScratchStorage scratch) throws FormatException, IOException {
+            int rx = Math.max(0, core.x - halo), ry = Math.max(0, core.y - halo);
+            int rw = Math.min(crop.width, core.x + core.width + halo) - rx;
+            int rh = Math.min(crop.height, core.y + core.height + halo) - ry;
+            Roi tileRoi = new Roi(crop.x + rx, crop.y + ry, rw, rh);
+            tileRoi.setName("tile_"+core.x+"_"+core.y);
+            ImagePlus img = genes.openGenesChannels(reader, tileRoi, new int[]{ch})[0];
+            float[][] tileDog = genes.backend().DOG(img, genes.minDOGDots, genes.maxDOGDots, genes.minDOGDotsZ, genes.maxDOGDotsZ);
+            img.flush();
+            img.close();
+            dog = scratch.floatSlices(tileDog.length, core.width * core.height);
+            float[] coreSlice = new float[core.width * core.height];
+            for (int z = 0; z < tileDog.length; z++) {
+                for (int y = 0; y < core.height; y++)
+                    System.arraycopy(tileDog[z], (core.y - ry + y) * rw + core.x - rx, coreSlice, y * core.width, core.width);
+                ScratchStorage.put(dog[z], coreSlice);
+            }
+            mask = roiMask.crop(core);
+        }
+
+        void release() {
+            dog = null;
+            mask = null;
+        }
+    }
+
+
+    /**
+     * Tiles cores in row major order
+     * @return tiles [ty][tx]
+     */
+    private Tile[][] tiles() {
+        int nx = (crop.width + tileSize - 1) / tileSize;
+        int ny = (crop.height + tileSize - 1) / tileSize;
+        Tile[][] tiles = new Tile[ny][nx];
+        for (int ty = 0; ty < ny; ty++)
+            for (int tx = 0; tx < nx; tx++) {
+                int x = tx * tileSize, y = ty * tileSize;
+                tiles[ty][tx] = new Tile(new Rectangle(x, y, Math.min(tileSize, crop.width - x), Math.min(tileSize, crop.height - y)));
+            }
+        return(tiles);
+    }
+
+
+    /**
+     * Find dots of channel
+     * @param ch channel index
+     * @return dots population without labels
+     * @throws loci.formats.FormatException
+     * @throws java.io.IOException
+     */
+    public DotsPopulation findDots(int ch) throws FormatException, IOException {
+        Tile[][] tiles = tiles();
+        System.out.println("Tiled detection : "+tiles[0].length+"x"+tiles.length+" tiles of "+tileSize+" pixels, halo = "+halo);
+
+        // tiles are read once, threshold on all tiles cores, one pass for 8 and 16-bit DoG
+        int pixelType = reader.getPixelType();
+        boolean integer = pixelType == FormatTools.UINT8 || pixelType == FormatTools.UINT16;
+        ScratchStorage scratch = new ScratchStorage(genes.scratchFolder());
+        long t0 = Metrics.start();
+        MaskedHistogram hist = new MaskedHistogram(null);
+        for (Tile[] row : tiles)
+            for (Tile tile : row) {
+                tile.read(ch, scratch);
+                int[] histSpans = genes.maskedThreshold ? tile.mask.spans : null;
+                float[] values = new float[tile.core.width * tile.core.height];
+                for (FloatBuffer slice : tile.dog) {
+                    if (integer)
+                        hist.addIntegerValues(ScratchStorage.get(slice, values), histSpans);
+                    else
+                        hist.addRange(ScratchStorage.get(slice, values), histSpans);
+                }
+            }
+        if (!integer)
+            for (Tile[] row : tiles)
+                for (Tile tile : row) {
+                    int[] histSpans = genes.maskedThreshold ? tile.mask.spans : null;
+                    float[] values = new float[tile.core.width * tile.core.height];
+                    for (FloatBuffer slice : tile.dog)
+                        hist.addValues(ScratchStorage.get(slice, values), histSpans);
+                }
+        float th = hist.computeThreshold(genes.geneThreshold);
+        Metrics.stop("tiles threshold", t0, (long) crop.width * crop.height * sizeZ, 0);
+        t0 = Metrics.start();
+
+        // label spilled tiles and stitch borders
+        UnionFind uf = new UnionFind();
+        int nx = tiles[0].length;
+        int[][][] prevBottom = new int[nx][][];
+        int[][][] curBottom = new int[nx][][];
+        for (int ty = 0; ty < tiles.length; ty++) {
+            int[][] leftCol = null;
+            for (int tx = 0; tx < nx; tx++) {
+                Tile tile = tiles[ty][tx];
+                int cw = tile.core.width, chh = tile.core.height;
+                ImageStack stackBin = new ImageStack(cw, chh);
+                int[] spans = tile.mask.spans;
+                float[] values = new float[cw * chh];
+                for (FloatBuffer dogSlice : tile.dog) {
+                    float[] slice = ScratchStorage.get(dogSlice, values);
+                    byte[] bin = new byte[cw * chh];
+                    for (int s = 0; s < spans.length; s += 2)
+                        for (int n = spans[s]; n < spans[s + 1]; n++)
+                            if (slice[n] >= th)
+                                bin[n] = (byte) 255;
+                    stackBin.addSlice(new ByteProcessor(cw, chh, bin));
+                }
+                tile.release();
+                DotsPopulation tilePop = new Labeller3D().label(stackBin, genes.cal, 0, Double.MAX_VALUE, true);
+                int offset = uf.nbLabels;
+                for (int l = 0; l < tilePop.sizes.length; l++) {
+                    int global = uf.newLabel();
+                    uf.size[global] = tilePop.sizes[l];
+                }
+                // tile labels to global labels, tile labels are on heap
+                int[][] lab = new int[sizeZ][];
+                for (int z = 0; z < sizeZ; z++)
+                    lab[z] = tilePop.labels[z].array();
+                for (int[] slice : lab)
+                    for (int n = 0; n < slice.length; n++)
+                        if (slice[n] > 0)
+                            slice[n] += offset;
+                // left tile
+                if (leftCol != null)
+                    for (int z = 0; z < sizeZ; z++)
+                        for (int y = 0; y < chh; y++)
+                            stitch(uf, lab[z][y * cw], leftCol, z, y, 0, chh - 1);
+                if (ty > 0) {
+                    // top tile
+                    for (int z = 0; z < sizeZ; z++)
+                        for (int x = 0; x < cw; x++)
+                            stitch(uf, lab[z][x], prevBottom[tx], z, x, 0, cw - 1);
+                    // top corners
+                    if (tx > 0) {
+                        int[][] tl = prevBottom[tx - 1];
+                        int last = tl[0].length - 1;
+                        for (int z = 0; z < sizeZ; z++)
+                            stitch(uf, lab[z][0], tl, z, last, last, last);
+                    }
+                    if (tx < nx - 1)
+                        for (int z = 0; z < sizeZ; z++)
+                            stitch(uf, lab[z][cw - 1], prevBottom[tx + 1], z, 0, 0, 0);
+                }
+                // keep right column and bottom row
+                leftCol = new int[sizeZ][chh];
+                curBottom[tx] = new int[sizeZ][cw];
+                for (int z = 0; z < sizeZ; z++) {
+                    for (int y = 0; y < chh; y++)
+                        leftCol[z][y] = lab[z][y * cw + cw - 1];
+                    System.arraycopy(lab[z], (chh - 1) * cw, curBottom[tx][z], 0, cw);
+                }
+            }
+            int[][][] tmp = prevBottom;
+            prevBottom = curBottom;
+            curBottom = tmp;
+        }
+
+        Metrics.stop("tiles label", t0, (long) crop.width * crop.height * sizeZ, 0);
+        // size filter on stitched objects
+        long[] rootSize = uf.rootSizes();
+        int[] finalLabel = uf.filterRoots(rootSize, genes.cal.pixelWidth*genes.cal.pixelHeight*genes.cal.pixelDepth, genes.minFoci, genes.maxFoci);
+        DotsPopulation pop = new DotsPopulation(crop.width, crop.height, sizeZ, genes.cal, uf.objectSizes(rootSize, finalLabel), null);
+        pop.threshold = th;
+        pop.thresholdVoxels = hist.count;
+        return(pop);
+    }
+
+
+    /**
+     * Merge label with its 3x3 neighbours on the border line of an other tile
+     * @param uf
+     * @param label global label of voxel, 0 = background
+     * @param border border labels [z][position along border]
+     * @param z
+     * @param pos voxel position along border
+     * @param first first neighbour position allowed on border
+     * @param last last neighbour position allowed on border
+     */
+    private void stitch(UnionFind uf, int label, int[][] border, int z, int pos, int first, int last) {
+        if (label == 0)
+            return;
+        for (int dz = -1; dz <= 1; dz++) {
+            int zz = z + dz;
+            if (zz < 0 || zz >= sizeZ)
+                continue;
+            for (int d = -1; d <= 1; d++) {
+                int p = pos + d;
+                if (p >= first && p <= last && border[zz][p] > 0)
+                    uf.union(label, border[zz][p]);
+            }
+        }
+    }
+}
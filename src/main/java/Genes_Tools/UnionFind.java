@@ -0,0 +1,119 @@
+package Genes_Tools;
+
+
+import java.util.Arrays;
+
+
+/**
+ * Union-find on labels 1..n with voxels count per label
+ * Smallest label is root, path halving
+ * @author phm
+ */
+
+public class UnionFind {
+
+    private int[] parent = new int[1024];
+    // voxels count added on label, summed on roots by rootSizes
+    public long[] size = new long[1024];
+    public int nbLabels = 0;
+
+
+    /**
+     * New label
+     * @return label
+     */
+    public int newLabel() {
+        nbLabels++;
+        if (nbLabels == parent.length) {
+            parent = Arrays.copyOf(parent, parent.length * 2);
+            size = Arrays.copyOf(size, size.length * 2);
+        }
+        parent[nbLabels] = nbLabels;
+        size[nbLabels] = 0;
+        return(nbLabels);
+    }
+
+
+    public int find(int l) {
+        while (parent[l] != l) {
+            parent[l] = parent[parent[l]];
+            l = parent[l];
+        }
+        return(l);
+    }
+
+
+    public boolean isRoot(int l) {
+        return(parent[l] == l);
+    }
+
+
+    /**
+     * Merge two labels
+     * @return root
+     */
+    public int union(int a, int b) {
+        a = find(a);
+        b = find(b);
+        if (a == b)
+            return(a);
+        if (a < b) {
+            parent[b] = a;
+            return(a);
+        }
+        parent[a] = b;
+        return(b);
+    }
+
+
+    /**
+     * Voxels count of each component, on its root label
+     * @return sizes indexed by label
+     */
+    public long[] rootSizes() {
+        long[] rootSize = new long[nbLabels + 1];
+        for (int l = 1; l <= nbLabels; l++)
+            rootSize[find(l)] += size[l];
+        return(rootSize);
+    }
+
+
+    /**
+     * Final labels 1..n of components with volume in [minVol, maxVol], 0 if filtered out
+     * @param rootSize
+     * @param voxVol
+     * @param minVol
+     * @param maxVol
+     * @return final label indexed by root label
+     */
+    public int[] filterRoots(long[] rootSize, double voxVol, double minVol, double maxVol) {
+        int[] finalLabel = new int[nbLabels + 1];
+        int nbObjects = 0;
+        for (int l = 1; l <= nbLabels; l++) {
+            if (!isRoot(l))
+                continue;
+            double vol = rootSize[l] * voxVol;
+            if (vol >= minVol && vol <= maxVol)
+                finalLabel[l] = ++nbObjects;
+        }
+        return(finalLabel);
+    }
+
+
+    /**
+     * Sizes of final objects
+     * @param rootSize
+     * @param finalLabel
+     * @return sizes, object label = index + 1
+     */
+    public int[] objectSizes(long[] rootSize, int[] finalLabel) {
+        int nbObjects = 0;
+        for (int l : finalLabel)
+            nbObjects = Math.max(nbObjects, l);
+        int[] sizes = new int[nbObjects];
+        for (int l = 1; l <= nbLabels; l++)
+            if (finalLabel[l] > 0)
+                sizes[finalLabel[l] - 1] = (int) rootSize[l];
+        return(sizes);
+    }
+}
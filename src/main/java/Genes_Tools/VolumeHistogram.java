@@ -0,0 +1,146 @@
+package Genes_Tools;
+
+
+/**
+ * Objects volume histogram of one gene in one roi
+ * Log2 bins of objects voxels count (BINS_PER_OCTAVE per octave), written as sparse "bin:count" list
+ * Dots number is estimated from bins without image : objects count as one dot or as their volume
+ * over the single dot volume, single dot volume can be fitted on the pooled histograms of a batch
+ * @author phm
+ */
+
+public class VolumeHistogram {
+
+    public static final int BINS_PER_OCTAVE = 8;
+    // up to 2^31 voxels
+    private static final int BINS = 31 * BINS_PER_OCTAVE + 1;
+
+    public final long[] counts = new long[BINS];
+    // objects and voxels, exact
+    public long objects = 0;
+    public long voxels = 0;
+
+
+    /**
+     * Bin of objects voxels count
+     * @param voxels
+     * @return bin
+     */
+    public static int bin(long voxels) {
+        return((int) Math.floor(Math.log(Math.max(1, voxels)) / Math.log(2) * BINS_PER_OCTAVE));
+    }
+
+
+    /**
+     * Geometric center of bin
+     * @param bin
+     * @return voxels
+     */
+    public static double center(int bin) {
+        return(Math.pow(2, (bin + 0.5) / BINS_PER_OCTAVE));
+    }
+
+
+    /**
+     * Add one object
+     * @param voxels
+     */
+    public void add(long voxels) {
+        counts[bin(voxels)]++;
+        objects++;
+        this.voxels += voxels;
+    }
+
+
+    /**
+     * Histogram of objects of population
+     * @param pop
+     * @return histogram
+     */
+    public static VolumeHistogram of(DotsPopulation pop) {
+        VolumeHistogram hist = new VolumeHistogram();
+        for (int s : pop.sizes)
+            hist.add(s);
+        return(hist);
+    }
+
+
+    /**
+     * Add other histogram
+     * @param other
+     */
+    public void merge(VolumeHistogram other) {
+        for (int b = 0; b < BINS; b++)
+            counts[b] += other.counts[b];
+        objects += other.objects;
+        voxels += other.voxels;
+    }
+
+
+    /**
+     * Single dot voxels : mode of histogram smoothed over 3 bins
+     * @return voxels, 0 if no object
+     */
+    public double mode() {
+        int best = -1;
+        double bestCount = 0;
+        for (int b = 0; b < BINS; b++) {
+            double c = counts[b] + 0.5 * ((b > 0 ? counts[b - 1] : 0) + (b < BINS - 1 ? counts[b + 1] : 0));
+            if (c > bestCount) {
+                bestCount = c;
+                best = b;
+            }
+        }
+        return((best < 0) ? 0 : center(best));
+    }
+
+
+    /**
+     * Dots number, each object counts max(1, round(voxels / single dot voxels))
+     * @param singleVoxels single dot voxels
+     * @return dots
+     */
+    public long estimateDots(double singleVoxels) {
+        if (singleVoxels <= 0)
+            return(objects);
+        long dots = 0;
+        for (int b = 0; b < BINS; b++)
+            if (counts[b] > 0)
+                dots += counts[b] * Math.max(1, Math.round(center(b) / singleVoxels));
+        return(dots);
+    }
+
+
+    /**
+     * Sparse bins "bin:count,bin:count"
+     * @return bins
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int b = 0; b < BINS; b++)
+            if (counts[b] > 0)
+                sb.append((sb.length() == 0) ? "" : ",").append(b).append(':').append(counts[b]);
+        return(sb.toString());
+    }
+
+
+    /**
+     * Histogram from objects, voxels and sparse bins
+     * @param objects
+     * @param voxels
+     * @param bins
+     * @return histogram
+     */
+    public static VolumeHistogram parse(long objects, long voxels, String bins) {
+        VolumeHistogram hist = new VolumeHistogram();
+        hist.objects = objects;
+        hist.voxels = voxels;
+        if (!bins.isEmpty())
+            for (String bc : bins.split(",")) {
+                int colon = bc.indexOf(':');
+                hist.counts[Integer.parseInt(bc.substring(0, colon))] = Long.parseLong(bc.substring(colon + 1));
+            }
+        return(hist);
+    }
+}
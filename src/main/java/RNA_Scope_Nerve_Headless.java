@@ -0,0 +1,192 @@
+/*
+ * Headless batch of RNA_Scope_Nerve
+ * Parameters from command line (--key=value) and/or parameter file (key = value)
+ * Author Philippe Mailly
+ */
+
+
+
+import Genes_Tools.DotCounts;
+import Genes_Tools.ImageSession;
+import Genes_Tools.RNA_Scope_Nerve_Processing;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+
+
+public class RNA_Scope_Nerve_Headless {
+
+    private static final String USAGE = "Usage : java -cp <jars> RNA_Scope_Nerve_Headless [--params=file] --input=dir [options]\n"
+            + "  --input=dir              images folder (czi)\n"
+            + "  --output=dir             results folder (default input/Results)\n"
+            + "  --gene1=name|index       gene1 channel\n"
+            + "  --gene2=name|index|None  gene2 channel (default None)\n"
+            + "  --gene3=, --gene4=       more genes channels (default None), ratios are written for all genes pairs\n"
+            + "  --minFoci=, --maxFoci=, --singleDotVol=   dots volumes (µm3)\n"
+            + "  --pixelWidth=, --pixelDepth=              calibration override (µm)\n"
+            + "  --maskedThreshold=true|false, --tiling=Auto|Always|Never\n"
+            + "  --colocalisation=true|false, --colocDistance=µm   gene1 dots overlapping or near gene2 dots\n"
+            + "  --zStreaming=Never|Always|Auto, --slabPlanes=n   read and detect deep stacks by Z-slabs\n"
+            + "  --preview=true|false, --previewBinning=n   only write approximate preview.xls on images binned n x n in XY\n"
+            + "  --objectsImages=All|Sample|None, --objectsSample=n, --objectsCompression=LZW|Deflate|None\n"
+            + "  --scratch=Heap|Mapped, --scratchDir=dir   objects labels storage\n"
+            + "  --workers=n, --memoryBudget=GB (0 = half heap), --cache=true|false, --longestFirst=true|false  start largest rois first\n"
+            + "  --resume=true|false      keep results of an interrupted run (default false), --columnar=true|false  write results .col file\n"
+            + "  --shard=i/N              process files i, i+N, i+2N ... (i from 0)\n"
+            + "  --recount                only recompute dots numbers of all shards from output/histograms*.tsv (--singleDotVol=)\n";
+
+
+    /**
+     * Parameters from parameter file then command line
+     * @param args
+     * @return parameters
+     * @throws java.io.IOException
+     */
+    static Properties parameters(String[] args) throws IOException {
+        Properties params = new Properties();
+        for (String arg : args)
+            if (arg.startsWith("--params=")) {
+                try (Reader in = new FileReader(arg.substring("--params=".length()))) {
+                    params.load(in);
+                }
+            }
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.startsWith("--params="))
+                continue;
+            int eq = arg.indexOf('=');
+            if (eq < 0)
+                params.setProperty(arg.substring(2), "true");
+            else
+                params.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        return(params);
+    }
+
+
+    /**
+     * Channel index from channel name or index
+     * @param channels channels name, last one is None
+     * @param ch
+     * @return index, -1 for None
+     */
+    static int channelIndex(String[] channels, String ch) {
+        if (ch.equals("None"))
+            return(-1);
+        int index = Arrays.asList(channels).indexOf(ch);
+        if (index < 0) {
+            try {
+                index = Integer.parseInt(ch);
+            } catch (NumberFormatException ex) {
+                index = -1;
+            }
+        }
+        if (index < 0 || index >= channels.length - 1)
+            throw new IllegalArgumentException("Unknown channel "+ch+", channels = "+Arrays.toString(channels));
+        return(index);
+    }
+
+
+    public static void main(String[] args) {
+        // no AWT window is ever created
+        System.setProperty("java.awt.headless", "true");
+        try {
+            Properties params = parameters(args);
+            if (params.containsKey("help") || !(params.containsKey("input") || params.containsKey("recount") && params.containsKey("output"))) {
+                System.out.println(USAGE);
+                System.exit(params.containsKey("help") ? 0 : 2);
+            }
+            if (params.containsKey("recount")) {
+                // no image is read, no detection backend is started
+                String outDirResults = params.getProperty("output", params.getProperty("input")+File.separator+"Results")+File.separator;
+                double singleDotVol = Double.parseDouble(params.getProperty("singleDotVol", String.valueOf(RNA_Scope_Nerve_Processing.SINGLE_DOT_VOL)));
+                DotCounts.write(DotCounts.files(outDirResults), singleDotVol, outDirResults+"dots_counts.xls");
+                System.exit(0);
+            }
+            RNA_Scope_Nerve_Processing genes = new RNA_Scope_Nerve_Processing();
+            String imageDir = new File(params.getProperty("input")).getAbsolutePath()+File.separator;
+            ArrayList<String> imageFiles = genes.findImages(imageDir, "czi");
+            if (imageFiles == null || imageFiles.isEmpty()) {
+                System.out.println("No image found in "+imageDir);
+                System.exit(1);
+            }
+
+            // Find chanels, image calibration on first image
+            ImageSession session = new ImageSession(imageFiles.get(0));
+            String[] channels = genes.findChannels(imageFiles.get(0), session.meta, session.reader);
+            genes.cal = genes.findImageCalib(session.meta);
+            // all images are checked against it before processing
+            genes.referenceImage = imageFiles.get(0);
+            session.close();
+            int[] slots = new int[RNA_Scope_Nerve_Processing.MAX_GENES];
+            for (int g = 0; g < slots.length; g++)
+                slots[g] = channelIndex(channels, params.getProperty("gene"+(g+1), (g == 0) ? channels[0] : "None"));
+            int[] chIndex = RNA_Scope_Nerve_Processing.genesChannels(slots);
+            for (int g = 0; g < chIndex.length; g++)
+                System.out.println("Gene"+(g+1)+" channel = "+((chIndex[g] < 0) ? "None" : channels[chIndex[g]]));
+
+            // parameters, dialog defaults otherwise
+            genes.minFoci = Double.parseDouble(params.getProperty("minFoci", String.valueOf(genes.minFoci)));
+            genes.maxFoci = Double.parseDouble(params.getProperty("maxFoci", String.valueOf(genes.maxFoci)));
+            genes.singleDotVol = Double.parseDouble(params.getProperty("singleDotVol", String.valueOf(genes.singleDotVol)));
+            genes.cal.pixelWidth = Double.parseDouble(params.getProperty("pixelWidth", String.valueOf(genes.cal.pixelWidth)));
+            genes.cal.pixelHeight = genes.cal.pixelWidth;
+            genes.cal.pixelDepth = Double.parseDouble(params.getProperty("pixelDepth", String.valueOf(genes.cal.pixelDepth)));
+            genes.pixVol = (float) (genes.cal.pixelWidth*genes.cal.pixelHeight*genes.cal.pixelDepth);
+            genes.maskedThreshold = Boolean.parseBoolean(params.getProperty("maskedThreshold", String.valueOf(genes.maskedThreshold)));
+            genes.colocalisation = Boolean.parseBoolean(params.getProperty("colocalisation", String.valueOf(genes.colocalisation)));
+            genes.colocDistance = Double.parseDouble(params.getProperty("colocDistance", String.valueOf(genes.colocDistance)));
+            genes.tiling = params.getProperty("tiling", genes.tiling);
+            genes.zStreaming = params.getProperty("zStreaming", genes.zStreaming);
+            genes.slabPlanes = Math.max(1, Integer.parseInt(params.getProperty("slabPlanes", String.valueOf(genes.slabPlanes))));
+            genes.preview = Boolean.parseBoolean(params.getProperty("preview", String.valueOf(genes.preview)));
+            genes.previewBinning = Math.max(1, Integer.parseInt(params.getProperty("previewBinning", String.valueOf(genes.previewBinning))));
+            genes.objectsImages = params.getProperty("objectsImages", genes.objectsImages);
+            genes.objectsSample = Math.max(1, Integer.parseInt(params.getProperty("objectsSample", String.valueOf(genes.objectsSample))));
+            genes.objectsCompression = params.getProperty("objectsCompression", genes.objectsCompression);
+            genes.scratch = params.getProperty("scratch", genes.scratch);
+            genes.scratchDir = params.getProperty("scratchDir", genes.scratchDir);
+            genes.workers = Math.max(1, Integer.parseInt(params.getProperty("workers", String.valueOf(Runtime.getRuntime().availableProcessors()))));
+            genes.memoryBudget = Double.parseDouble(params.getProperty("memoryBudget", String.valueOf(genes.memoryBudget)));
+            genes.longestFirst = Boolean.parseBoolean(params.getProperty("longestFirst", String.valueOf(genes.longestFirst)));
+            genes.useCache = Boolean.parseBoolean(params.getProperty("cache", String.valueOf(genes.useCache)));
+            genes.resume = Boolean.parseBoolean(params.getProperty("resume", String.valueOf(genes.resume)));
+            genes.columnarResults = Boolean.parseBoolean(params.getProperty("columnar", String.valueOf(genes.columnarResults)));
+
+            // shard i of N of the sorted file list
+            String suffix = "";
+            List<String> files = imageFiles;
+            if (params.containsKey("shard")) {
+                String[] shard = params.getProperty("shard").split("/");
+                int i = Integer.parseInt(shard[0].trim()), n = Integer.parseInt(shard[1].trim());
+                if (n < 1 || i < 0 || i >= n)
+                    throw new IllegalArgumentException("Bad shard "+params.getProperty("shard"));
+                files = new ArrayList<>();
+                for (int f = i; f < imageFiles.size(); f += n)
+                    files.add(imageFiles.get(f));
+                suffix = "_shard"+i+"of"+n;
+                System.out.println("Shard "+i+"/"+n+" : "+files.size()+" of "+imageFiles.size()+" images");
+            }
+
+            // create output folder
+            String outDirResults = params.getProperty("output", imageDir+"Results")+File.separator;
+            File outDir = new File(outDirResults);
+            if (!outDir.exists())
+                outDir.mkdirs();
+
+            genes.processImages(imageDir, outDirResults, files, chIndex, suffix);
+            System.out.println("Process done");
+            System.exit(0);
+        } catch (DependencyException | ServiceException | FormatException | IOException | IllegalArgumentException ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+}